@@ -0,0 +1,71 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * 按缓存key前缀配置的过期策略,hmdp.cache.ttl.policies.<名称>.prefix指定前缀,最长前缀优先
+ * 没有匹配的前缀时只按default-jitter随机延长过期时间
+ * */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache.ttl")
+public class CacheTtlProperties {
+
+    private double defaultJitter = 0.1;
+
+    private Map<String, Policy> policies = new LinkedHashMap<>();
+
+    private Policy defaultPolicy;
+
+    @PostConstruct
+    private void init() {
+        defaultPolicy = new Policy();
+        defaultPolicy.setJitter(defaultJitter);
+    }
+
+    public Policy resolve(String key) {
+        Policy matched = null;
+        for (Policy policy : policies.values()) {
+            if (policy.getPrefix() != null && key.startsWith(policy.getPrefix())
+                    && (matched == null || policy.getPrefix().length() > matched.getPrefix().length())) {
+                matched = policy;
+            }
+        }
+        return matched != null ? matched : defaultPolicy;
+    }
+
+    @Data
+    public static class Policy {
+        private String prefix;
+        //过期时间随机增加0~jitter倍
+        private double jitter = 0.1;
+        //命中时通过GETEX重置过期时间(需要redis 6.2+)
+        private boolean sliding;
+        //大于0时,写入超过该秒数后返回旧值并在后台刷新
+        private long softSeconds;
+        //大于0时作为redis中的过期时间,代替调用方传入的ttl
+        private long hardSeconds;
+
+        public long jitter(long millis) {
+            return millis + (long) (millis * jitter * ThreadLocalRandom.current().nextDouble());
+        }
+
+        //redis中的过期时间,毫秒
+        public long hardMillis(long time, TimeUnit unit) {
+            return jitter(hardSeconds > 0 ? hardSeconds * 1000 : unit.toMillis(time));
+        }
+
+        //逻辑过期时间戳,没有配置软过期时返回0
+        public long softExpireAt(long now) {
+            return softSeconds > 0 ? now + jitter(softSeconds * 1000) : 0;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.hmdp.config;
+
+import io.lettuce.core.AbstractRedisClient;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.api.StatefulRedisConnection;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+
+@Configuration
+public class RedisAsyncConfig {
+    /*
+     * 复用spring的lettuce客户端建立一个共享连接,供异步接口使用,lettuce连接线程安全,可多路复用
+     * 懒加载: 首次调用异步接口时才连接,使用方通过ObjectProvider获取
+     * 哨兵/集群部署或redis暂时不可用时只有异步接口失败,不影响应用启动和同步接口
+     * */
+    @Lazy
+    @Bean(destroyMethod = "close")
+    public StatefulRedisConnection<String, String> asyncRedisConnection(LettuceConnectionFactory connectionFactory) {
+        AbstractRedisClient client = connectionFactory.getRequiredNativeClient();
+        if (!(client instanceof RedisClient)) {
+            throw new IllegalStateException("异步接口仅支持单机redis");
+        }
+        return ((RedisClient) client).connect();
+    }
+}
@@ -0,0 +1,97 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheRebuildExecutor;
+import com.hmdp.utils.CacheWarmer;
+import com.hmdp.utils.IdBloomFilter;
+import com.hmdp.utils.RedisScriptRegistry;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopNameIndex;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 运行指标
+ * </p>
+ */
+@RestController
+@RequestMapping("/metrics")
+public class MetricsController {
+
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
+    @Resource
+    private CacheWarmer cacheWarmer;
+
+    @Resource
+    private CacheRebuildExecutor cacheRebuildExecutor;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @Resource
+    private ShopNameIndex shopNameIndex;
+
+    /**
+     * lua脚本调用统计
+     * @return 每个脚本的调用次数、错误次数、耗时
+     */
+    @GetMapping("/scripts")
+    public Result scripts() {
+        return Result.ok(redisScriptRegistry.stats());
+    }
+
+    /**
+     * 布隆过滤器状态
+     * @return 每个过滤器的位数、哈希函数个数、构建时的行数
+     */
+    @GetMapping("/bloom")
+    public Result bloom() {
+        return Result.ok(idBloomFilter.stats());
+    }
+
+    /**
+     * 缓存预热进度
+     * @return 状态、当前阶段、已预热的数量、耗时
+     */
+    @GetMapping("/warmup")
+    public Result warmup() {
+        return Result.ok(cacheWarmer.stats());
+    }
+
+    /**
+     * 缓存后台重建
+     * @return 队列深度、去重/拒绝/失败次数、重建耗时直方图
+     */
+    @GetMapping("/rebuild")
+    public Result rebuild() {
+        return Result.ok(cacheRebuildExecutor.stats());
+    }
+
+    /**
+     * 店铺空间索引
+     * @return 是否就绪、每个类型的店铺数量
+     */
+    @GetMapping("/geo")
+    public Result geo() {
+        return Result.ok(shopGeoIndex.stats());
+    }
+
+    /**
+     * 店铺名称索引
+     * @return 是否就绪、店铺数、词数、倒排列表大小
+     */
+    @GetMapping("/search")
+    public Result search() {
+        return Result.ok(shopNameIndex.stats());
+    }
+}
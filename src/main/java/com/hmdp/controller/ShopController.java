@@ -1,12 +1,10 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopGeoQuery;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
-import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -45,10 +43,8 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        // 写入数据库,返回店铺id
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -63,6 +59,17 @@ public class ShopController {
         return shopService.update(shop);
     }
 
+    /**
+     * 删除商铺
+     *
+     * @param id 商铺id
+     * @return 无
+     */
+    @DeleteMapping("/{id}")
+    public Result deleteShop(@PathVariable("id") Long id) {
+        return shopService.deleteShop(id);
+    }
+
     /**
      * 根据商铺类型分页查询商铺信息
      *
@@ -81,22 +88,81 @@ public class ShopController {
     }
 
     /**
-     * 根据商铺名称关键字分页查询商铺信息
+     * 根据商铺类型按距离滚动查询商铺信息
+     * 第一页保存按距离排序的结果快照,之后的页从快照中截取
+     *
+     * @param typeId 商铺类型
+     * @param x      经度
+     * @param y      纬度
+     * @param cursor 上一页返回的游标,第一页不传
+     * @return 商铺列表和下一页的游标
+     */
+    @GetMapping("/of/type/scroll")
+    public Result scrollShopByType(
+            @RequestParam("typeId") Integer typeId,
+            @RequestParam("x") Double x,
+            @RequestParam("y") Double y,
+            @RequestParam(value = "cursor", required = false) String cursor
+    ) {
+        return shopService.scrollShopByGeo(typeId, x, y, cursor);
+    }
+
+    /**
+     * 查询距离最近的k个商铺
+     *
+     * @param typeId 商铺类型
+     * @param x      经度
+     * @param y      纬度
+     * @param k      数量,最多10个
+     * @return 按距离排序的商铺列表
+     */
+    @GetMapping("/of/type/nearest")
+    public Result queryNearestShops(
+            @RequestParam("typeId") Integer typeId,
+            @RequestParam("x") Double x,
+            @RequestParam("y") Double y,
+            @RequestParam(value = "k", defaultValue = "5") Integer k
+    ) {
+        return shopService.queryNearestShops(typeId, x, y, k);
+    }
+
+    /**
+     * 附近商铺组合查询,一次查询多个类型,按均价、评分、营业时间过滤
+     * 例如 /shop/search/nearby?typeIds=1,2&x=120.15&y=30.33&radius=3000&maxPrice=100&sort=blend
+     *
+     * @param query 类型、坐标、半径、均价和评分范围、是否营业中、排序方式(distance/score/sold/blend)、页码
+     * @return 商铺列表
+     */
+    @GetMapping("/search/nearby")
+    public Result searchShopsByGeo(ShopGeoQuery query) {
+        return shopService.searchShopsByGeo(query);
+    }
+
+    /**
+     * 根据商铺名称关键字分页查询商铺信息,按评分、销量排序
      *
      * @param name    商铺名称关键字
      * @param current 页码
+     * @param prefix  是否只匹配以关键字开头的名称
      * @return 商铺列表
      */
     @GetMapping("/of/name")
     public Result queryShopByName(
             @RequestParam(value = "name", required = false) String name,
-            @RequestParam(value = "current", defaultValue = "1") Integer current
+            @RequestParam(value = "current", defaultValue = "1") Integer current,
+            @RequestParam(value = "prefix", defaultValue = "false") Boolean prefix
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .like(StrUtil.isNotBlank(name), "name", name)
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        return shopService.queryShopByName(name, current, prefix);
+    }
+
+    /**
+     * 商铺名称输入提示
+     *
+     * @param prefix 已输入的内容
+     * @return 以其开头的商铺名称
+     */
+    @GetMapping("/of/name/suggest")
+    public Result suggestShopNames(@RequestParam("prefix") String prefix) {
+        return shopService.suggestShopNames(prefix);
     }
 }
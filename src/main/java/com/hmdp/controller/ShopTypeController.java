@@ -1,15 +1,13 @@
 package com.hmdp.controller;
 
 
-import com.hmdp.dto.Result;
-import com.hmdp.entity.ShopType;
-import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.ShopTypeSnapshot;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
-import java.util.List;
 
 /**
  * <p>
@@ -23,13 +21,11 @@ import java.util.List;
 @RequestMapping("/shop-type")
 public class ShopTypeController {
     @Resource
-    private IShopTypeService typeService;
+    private ShopTypeSnapshot shopTypeSnapshot;
 
-    @GetMapping("list")
-    public Result queryTypeList() {
-        List<ShopType> typeList = typeService.queryShopType();
-        if (typeList.size() == 0)
-            return Result.fail("商铺类型数据为0");
-        return Result.ok(typeList);
+    //直接返回快照中序列化好的响应
+    @GetMapping(value = "list", produces = MediaType.APPLICATION_JSON_VALUE)
+    public byte[] queryTypeList() {
+        return shopTypeSnapshot.body();
     }
 }
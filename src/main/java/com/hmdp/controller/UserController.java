@@ -9,6 +9,7 @@ import com.hmdp.entity.User;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
@@ -35,6 +36,9 @@ public class UserController {
     @Resource
     private IUserInfoService userInfoService;
 
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
     /**
      * 发送手机验证码
      */
@@ -91,7 +95,10 @@ public class UserController {
 
     @GetMapping("/{id}")
     public Result queryUserById(@PathVariable("id") Long userId){
-        // 查询详情
+        // 查询详情,布隆过滤器判定不存在时不查询数据库
+        if (!idBloomFilter.mightContain(IdBloomFilter.USER, userId)) {
+            return Result.ok();
+        }
         User user = userService.getById(userId);
         if (user == null) {
             return Result.ok();
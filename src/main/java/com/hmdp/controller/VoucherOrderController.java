@@ -4,12 +4,14 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -32,4 +34,16 @@ public class VoucherOrderController {
         return voucherOrderService.seckKillVoucher(voucherId);
 
     }
+
+    //查询秒杀订单的处理状态
+    @GetMapping("status/{id}")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
+
+    //异步秒杀,等待redis响应期间释放tomcat线程
+    @PostMapping("seckill/async/{id}")
+    public CompletableFuture<Result> seckillVoucherAsync(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.seckKillVoucherAsync(voucherId);
+    }
 }
@@ -0,0 +1,12 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class GeoScrollResult {
+    private List<?> list;
+    //下一页的游标,为null时没有更多
+    private String cursor;
+}
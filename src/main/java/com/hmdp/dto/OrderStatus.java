@@ -0,0 +1,38 @@
+package com.hmdp.dto;
+
+/*
+ * 秒杀订单处理状态,redis中只保存一个字符的状态码
+ * */
+public enum OrderStatus {
+    //消息还未被消费,或订单id不存在
+    PENDING("P"),
+    //订单创建成功
+    CREATED("C"),
+    //库存不足,抢购失败
+    FAILED("F"),
+    //重复下单
+    DUPLICATE("D");
+
+    private final String code;
+
+    OrderStatus(String code) {
+        this.code = code;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public boolean isTerminal() {
+        return this != PENDING;
+    }
+
+    public static OrderStatus of(String code) {
+        for (OrderStatus status : values()) {
+            if (status.code.equals(code)) {
+                return status;
+            }
+        }
+        return PENDING;
+    }
+}
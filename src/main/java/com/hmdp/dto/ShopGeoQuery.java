@@ -0,0 +1,31 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+/*
+ * 附近商铺的组合查询条件,范围条件为null时不限制
+ * */
+@Data
+public class ShopGeoQuery {
+    //商铺类型,可以多个
+    private List<Long> typeIds;
+    //经度
+    private Double x;
+    //纬度
+    private Double y;
+    //搜索半径,米
+    private Double radius;
+    private Long minPrice;
+    private Long maxPrice;
+    //评分,乘10保存
+    private Integer minScore;
+    private Integer maxScore;
+    //只查询当前营业中的
+    private Boolean openNow;
+    //排序: distance、score、sold、blend(按距离、评分、销量加权)
+    private String sort;
+    //页码
+    private Integer current;
+}
@@ -8,7 +8,7 @@ import com.hmdp.entity.User;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -17,7 +17,7 @@ import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 
-public class LoginInterceptor implements HandlerInterceptor {
+public class LoginInterceptor implements AsyncHandlerInterceptor {
 
 
     @Override
@@ -54,4 +54,10 @@ public class LoginInterceptor implements HandlerInterceptor {
         //移除用户
         UserHolder.removeUser();
     }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //异步请求不会在当前线程调用afterCompletion,需在此移除用户
+        UserHolder.removeUser();
+    }
 }
@@ -1,6 +1,7 @@
 package com.hmdp.service;
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopGeoQuery;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -16,7 +17,21 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    Result saveShop(Shop shop);
+
     Result update(Shop shop);
 
+    Result deleteShop(Long id);
+
     Result queryShopByGeo(Integer typeId, Integer current, Double x, Double y);
+
+    Result scrollShopByGeo(Integer typeId, Double x, Double y, String cursor);
+
+    Result queryNearestShops(Integer typeId, Double x, Double y, Integer k);
+
+    Result searchShopsByGeo(ShopGeoQuery query);
+
+    Result queryShopByName(String name, Integer current, Boolean prefix);
+
+    Result suggestShopNames(String prefix);
 }
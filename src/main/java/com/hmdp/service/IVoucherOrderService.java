@@ -1,9 +1,14 @@
 package com.hmdp.service;
 
+import com.hmdp.dto.OrderStatus;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +21,11 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckKillVoucher(Long voucherId);
 
-    void createVoucherOrder(VoucherOrder voucherId);
+    CompletableFuture<Result> seckKillVoucherAsync(Long voucherId);
+
+    OrderStatus createVoucherOrder(VoucherOrder voucherId);
+
+    Map<Long, OrderStatus> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    Result queryOrderStatus(Long orderId);
 }
@@ -1,19 +1,18 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -22,10 +21,17 @@ import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_TTL;
+
 /**
  * <p>
  * 服务实现类
@@ -46,15 +52,24 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
+    @Resource
+    private CacheClient cacheClient;
+
     @Override
     public Result queryBlogById(Long id) {
         //1.查询blog
+        if (!idBloomFilter.mightContain(IdBloomFilter.BLOG, id)) {
+            return Result.fail("博客不存在");
+        }
         Blog blog = getById(id);
         if (blog == null) {
             return Result.fail("博客不存在");
         }
         //2.查询用户信息,返回
-        queryBlogUser(blog);
+        queryBlogUsers(Collections.singletonList(blog));
         //3.查询blog是否被点赞
         isBlogLiked(blog);
         return Result.ok(blog);
@@ -85,10 +100,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         // 获取当前页数据
         List<Blog> records = page.getRecords();
         // 查询用户
-        records.forEach(blog -> {
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
+        queryBlogUsers(records);
+        records.forEach(this::isBlogLiked);
         return Result.ok(records);
     }
 
@@ -109,6 +122,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             }
             //2.4保存用户到redis的set集合
             stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+            //2.5点赞数变化,删除博客缓存
+            cacheClient.delete(CACHE_BLOG_KEY + id);
         } else {
             //3.如果已点赞取消点赞
             //3.1数据库点赞数-1
@@ -118,6 +133,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 return Result.fail("取消点赞失败");
             }
             stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+            cacheClient.delete(CACHE_BLOG_KEY + id);
         }
         return Result.ok();
     }
@@ -132,12 +148,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         //2.解析其中的用户id
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        String idstr = StrUtil.join(",", ids);
-        //3.根据用户id查询用户
-        List<UserDTO> userDTOS = userService.query().in("id", ids).last("order by field(id," + idstr + ")")
-                .list()
-                .stream().map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        //3.根据用户id批量查询用户
+        List<UserDTO> userDTOS = userService.queryUserDTOs(ids);
 
         //4.返回u
         return Result.ok(userDTOS);
@@ -154,6 +166,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!isSuccess) {
             return Result.fail("保存博客失败");
         }
+        idBloomFilter.add(IdBloomFilter.BLOG, blog.getId());
         //获取粉丝收件箱
         List<Follow> fansLists = followService.query().eq("follow_user_id", user.getId()).list();
         for (Follow fanlist : fansLists) {
@@ -176,7 +189,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         long minTime = 0;
         int os = 1;
-        ArrayList<Object> ids = new ArrayList<>(typedTuples.size());
+        List<Long> ids = new ArrayList<>(typedTuples.size());
         for (ZSetOperations.TypedTuple<String> tuple : typedTuples) {
             ids.add(Long.valueOf(tuple.getValue()));
             long time = tuple.getScore().longValue();
@@ -188,13 +201,11 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             }
         }
         offset=os;
-        String idstr = StrUtil.join(",", ids);
-        List<Blog> blogs = query().in("id", ids).last("order by field(id," + idstr + ")")
-                .list();
-        for (Blog blog : blogs) {
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        }
+        //2.批量查询博客和博主,保持收件箱中的顺序
+        List<Blog> blogs = cacheClient.queryBatch(CACHE_BLOG_KEY, ids, Blog.class, this::listByIds, Blog::getId,
+                CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        queryBlogUsers(blogs);
+        blogs.forEach(this::isBlogLiked);
         ScrollResult r = new ScrollResult();
         r.setList(blogs);
         r.setOffset(offset);
@@ -202,10 +213,17 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(r);
     }
 
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    //一次批量查询所有博主
+    private void queryBlogUsers(List<Blog> blogs) {
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toList());
+        Map<Long, UserDTO> users = userService.queryUserDTOs(userIds).stream()
+                .collect(Collectors.toMap(UserDTO::getId, Function.identity(), (a, b) -> a));
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
     }
 }
@@ -1,11 +1,9 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.FollowMapper;
 import com.hmdp.service.IFollowService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
@@ -15,7 +13,6 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
@@ -84,12 +81,7 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
         }
 
         List<Long> ids = intersect.stream().map(Long::valueOf).collect(Collectors.toList());
-        List<User> users = userService.listByIds(ids);
-        ArrayList<UserDTO> lists = new ArrayList<>();
-        for (User user : users) {
-            UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
-            lists.add(userDTO);
-        }
+        List<UserDTO> lists = userService.queryUserDTOs(ids);
         return Result.ok(lists);
     }
 }
@@ -1,33 +1,43 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.dto.GeoScrollResult;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopGeoQuery;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheRebuildExecutor;
+import com.hmdp.utils.IdBloomFilter;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopGeoSynchronizer;
+import com.hmdp.utils.ShopNameIndex;
 import com.hmdp.utils.RedisData;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.geo.*;
 import org.springframework.data.redis.connection.RedisCommands;
 import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -47,13 +57,46 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
     @Resource
     private CacheClient cacheClient;
-    public static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
+    @Resource
+    private CacheRebuildExecutor cacheRebuildExecutor;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @Resource
+    private ShopGeoSynchronizer shopGeoSynchronizer;
+
+    @Resource
+    private ShopNameIndex shopNameIndex;
+
+    //附近商铺的搜索半径,米
+    private static final double NEARBY_RADIUS = 2000;
+
+    //最近k个商铺和组合查询的最大搜索半径,米
+    private static final double NEAREST_MAX_RADIUS = 20000;
+
+    //组合查询最多的类型数
+    private static final int MAX_SEARCH_TYPES = 10;
+
+    //滚动查询第一页最多保存的结果数
+    @Value("${hmdp.geo.snapshot-limit:500}")
+    private int geoSnapshotLimit;
+
+    //店铺详情使用逻辑过期+提前刷新(XFetch),避免热点key同时过期
+    @Value("${hmdp.cache.xfetch.enabled:false}")
+    private boolean earlyRefresh;
 
     @Override
     public Result queryById(Long id) {
         //缓存穿透
         //Shop shop = queryWithPassThrough(id);
-        Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        Shop shop = earlyRefresh
+                ? cacheClient.queryWithEarlyRefresh(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES)
+                : cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
         //互斥锁解决缓存击穿
         /*Shop shop = queryWithMutex(id);
         if (shop == null) {
@@ -112,16 +155,17 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //判断锁是否获取成功
         if (isLock) {
 
-            //获取锁成功,调用其他线程执行重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+            //获取锁成功,调用其他线程执行重建,队列已满时释放锁
+            boolean submitted = cacheRebuildExecutor.submit(key, () -> {
                 try {
                     this.saveShop2Redis(id, 20L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
                 } finally {
                     unlock(lockKey);
                 }
             });
+            if (!submitted) {
+                unlock(lockKey);
+            }
 
         }
         //如果加锁的话就,返回过期的商铺信息
@@ -204,6 +248,19 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     }
 
 
+    @Override
+    public Result saveShop(Shop shop) {
+        //1.写入数据库
+        save(shop);
+        //2.加入布隆过滤器
+        idBloomFilter.add(IdBloomFilter.SHOP, shop.getId());
+        //3.加入空间索引、redis GEO和名称索引
+        shopGeoIndex.refresh(shop.getId());
+        shopGeoSynchronizer.onShopSaved(shop.getId(), null);
+        shopNameIndex.refresh(shop.getId());
+        return Result.ok(shop.getId());
+    }
+
     @Override
     @Transactional
     public Result update(Shop shop) {
@@ -211,10 +268,37 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if (id == null) {
             return Result.fail("店铺id不能为空");
         }
+        //记录修改前的类型,类型变化时从旧类型的GEO集合中移除
+        Shop old = query().select("type_id").eq("id", id).one();
+        if (old == null) {
+            return Result.fail("店铺不存在");
+        }
         //1.更新数据库
         updateById(shop);
-        //2.删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + shop.getId());
+        //2.事务提交后删除缓存,并通知各节点清除一级缓存
+        cacheClient.delete(CACHE_SHOP_KEY + shop.getId());
+        //3.坐标、类型或名称可能变化,事务提交后更新空间索引、redis GEO和名称索引
+        shopGeoIndex.refresh(id);
+        shopGeoSynchronizer.onShopSaved(id, old.getTypeId());
+        shopNameIndex.refresh(id);
+        return Result.ok();
+    }
+
+    @Override
+    @Transactional
+    public Result deleteShop(Long id) {
+        Shop old = query().select("type_id").eq("id", id).one();
+        if (old == null) {
+            return Result.fail("店铺不存在");
+        }
+        //1.删除数据库
+        removeById(id);
+        //2.事务提交后删除缓存,并通知各节点清除一级缓存
+        cacheClient.delete(CACHE_SHOP_KEY + id);
+        //3.事务提交后从空间索引、redis GEO和名称索引中移除
+        shopGeoIndex.refresh(id);
+        shopGeoSynchronizer.onShopDeleted(id, old.getTypeId());
+        shopNameIndex.refresh(id);
         return Result.ok();
     }
 
@@ -228,35 +312,222 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //2.计算分页参数
         int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
         int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
-        //3.查询redis,按照距离排序,分页
-        String key = "shop:Geo:" + typeId;
-        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().search(key, GeoReference.fromCoordinate(x, y), new Distance(2000), RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().limit(end));
-        if (results == null) {
-            return Result.ok();
-        }
+        //3.按照距离排序,分页
+        List<ShopGeoIndex.Hit> list = searchNearby(typeId, x, y, NEARBY_RADIUS, end);
         //4.解析出id
-        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> list = results.getContent();
         if (list.size()<=from){
             return Result.ok("到底了");
         }
-        List<Long> ids = new ArrayList<>(list.size());
-        Map<String, Distance> distanceMap = new HashMap<>(list.size());
         //4.1截取from到end
-        list.stream().skip(from).forEach(result -> {
-            //4.2获取店铺id
-            String shopIdStr = result.getContent().getName();
-            //4.3获取距离
-            Distance distance = result.getDistance();
-            ids.add(Long.valueOf(shopIdStr));
-            distanceMap.put(shopIdStr, distance);
-        });
-        //5.通过id查询出店铺
-        String idstr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("order by field(id," + idstr + ")").list();
+        List<ShopGeoIndex.Hit> page = list.subList(from, list.size());
+        //5.通过id批量查询出店铺,保持距离顺序
+        return Result.ok(queryShopsWithDistance(page));
+    }
+
+    @Override
+    public Result queryNearestShops(Integer typeId, Double x, Double y, Integer k) {
+        int limit = Math.max(1, Math.min(k, SystemConstants.MAX_PAGE_SIZE));
+        List<ShopGeoIndex.Hit> hits = shopGeoIndex.isReady()
+                ? shopGeoIndex.searchNearest(typeId, x, y, limit, NEAREST_MAX_RADIUS)
+                : searchNearby(typeId, x, y, NEAREST_MAX_RADIUS, limit);
+        return Result.ok(queryShopsWithDistance(hits));
+    }
+
+    /*
+     * 按名称查询,由进程内倒排索引匹配和排序,只为当前页批量读取店铺缓存
+     * 索引未就绪时查询数据库
+     * */
+    @Override
+    public Result queryShopByName(String name, Integer current, Boolean prefix) {
+        boolean prefixOnly = Boolean.TRUE.equals(prefix);
+        if (!shopNameIndex.isReady()) {
+            Page<Shop> page = query()
+                    .like(StrUtil.isNotBlank(name) && !prefixOnly, "name", name)
+                    .likeRight(StrUtil.isNotBlank(name) && prefixOnly, "name", name)
+                    .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+            return Result.ok(page.getRecords());
+        }
+        int from = (Math.max(current, 1) - 1) * SystemConstants.MAX_PAGE_SIZE;
+        List<Long> ids = shopNameIndex.search(name, prefixOnly, from, SystemConstants.MAX_PAGE_SIZE);
+        return Result.ok(cacheClient.queryBatch(CACHE_SHOP_KEY, ids, Shop.class, this::listByIds, Shop::getId,
+                CACHE_SHOP_TTL, TimeUnit.MINUTES));
+    }
+
+    @Override
+    public Result suggestShopNames(String prefix) {
+        if (!shopNameIndex.isReady()) {
+            return Result.ok(Collections.emptyList());
+        }
+        return Result.ok(shopNameIndex.suggest(prefix, SystemConstants.MAX_PAGE_SIZE));
+    }
+
+    /*
+     * 附近商铺组合查询: 多个类型、半径、均价和评分范围、营业中、排序方式
+     * 索引就绪时在进程内先过滤再计算距离,每个类型取前end个后k路归并,只为当前页加载店铺
+     * 索引未就绪时每个类型GEOSEARCH最多geoSnapshotLimit个,加载店铺后过滤、排序、归并
+     * */
+    @Override
+    public Result searchShopsByGeo(ShopGeoQuery query) {
+        //1.校验参数
+        if (query.getX() == null || query.getY() == null) {
+            return Result.fail("缺少坐标");
+        }
+        if (query.getTypeIds() == null || query.getTypeIds().isEmpty()) {
+            return Result.fail("缺少商铺类型");
+        }
+        List<Long> typeIds = query.getTypeIds().stream().filter(Objects::nonNull).distinct().collect(Collectors.toList());
+        if (typeIds.size() > MAX_SEARCH_TYPES) {
+            return Result.fail("最多同时查询" + MAX_SEARCH_TYPES + "个类型");
+        }
+        double radius = query.getRadius() == null ? NEARBY_RADIUS : Math.min(Math.max(query.getRadius(), 1), NEAREST_MAX_RADIUS);
+        //2.计算分页参数
+        int current = query.getCurrent() == null ? 1 : Math.max(query.getCurrent(), 1);
+        int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
+        //3.过滤、排序、归并;redis查询每个类型最多加载geoSnapshotLimit个店铺,只在该路径上限制页数
+        ShopGeoIndex.Matcher matcher = new ShopGeoIndex.Matcher(query, radius);
+        List<ShopGeoIndex.Hit> hits;
+        if (shopGeoIndex.isReady()) {
+            hits = shopGeoIndex.search(typeIds, matcher, end);
+        } else if (end > geoSnapshotLimit) {
+            return Result.ok("到底了");
+        } else {
+            hits = searchByRedis(typeIds, query.getX(), query.getY(), radius, matcher, end);
+        }
+        if (hits.size() <= from) {
+            return Result.ok("到底了");
+        }
+        //4.只加载当前页的店铺
+        return Result.ok(queryShopsWithDistance(hits.subList(from, hits.size())));
+    }
+
+    //索引未就绪时的组合查询,每个类型加载附近的店铺后过滤排序
+    private List<ShopGeoIndex.Hit> searchByRedis(List<Long> typeIds, double x, double y, double radius,
+                                                 ShopGeoIndex.Matcher matcher, int limit) {
+        List<List<ShopGeoIndex.Hit>> lists = new ArrayList<>(typeIds.size());
+        for (Long typeId : typeIds) {
+            List<ShopGeoIndex.Hit> nearby = searchNearby(typeId, x, y, radius, geoSnapshotLimit);
+            Map<Long, Double> distanceMap = new HashMap<>(nearby.size());
+            List<Long> ids = new ArrayList<>(nearby.size());
+            for (ShopGeoIndex.Hit hit : nearby) {
+                ids.add(hit.getId());
+                distanceMap.put(hit.getId(), hit.getDistance());
+            }
+            List<ShopGeoIndex.Hit> hits = new ArrayList<>();
+            for (Shop shop : cacheClient.queryBatch(CACHE_SHOP_KEY, ids, Shop.class, this::listByIds, Shop::getId,
+                    CACHE_SHOP_TTL, TimeUnit.MINUTES)) {
+                ShopGeoIndex.Hit hit = matcher.hit(shop, distanceMap.get(shop.getId()));
+                if (hit != null) {
+                    hits.add(hit);
+                }
+            }
+            ShopGeoIndex.sort(hits);
+            lists.add(hits);
+        }
+        return ShopGeoIndex.merge(lists, limit);
+    }
+
+    //按距离升序查询半径内的店铺,优先使用进程内空间索引,索引未就绪时查询redis
+    private List<ShopGeoIndex.Hit> searchNearby(long typeId, double x, double y, double radius, int limit) {
+        if (shopGeoIndex.isReady()) {
+            return shopGeoIndex.searchRadius(typeId, x, y, radius, limit);
+        }
+        String key = SHOP_GEO_KEY + typeId;
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().search(key, GeoReference.fromCoordinate(x, y), new Distance(radius), RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().limit(limit));
+        if (results == null) {
+            return new ArrayList<>();
+        }
+        List<ShopGeoIndex.Hit> hits = new ArrayList<>(results.getContent().size());
+        for (GeoResult<RedisGeoCommands.GeoLocation<String>> result : results.getContent()) {
+            hits.add(new ShopGeoIndex.Hit(Long.parseLong(result.getContent().getName()), result.getDistance().getValue()));
+        }
+        return hits;
+    }
+
+    /*
+     * 游标分页的附近商铺
+     * 第一页执行一次GEOSEARCH,第一页之后的结果(id,距离)保存到短期的redis列表,游标为 快照token:偏移量
+     * 之后每页只LRANGE一页,成本与页码无关
+     * */
+    @Override
+    public Result scrollShopByGeo(Integer typeId, Double x, Double y, String cursor) {
+        int pageSize = SystemConstants.DEFAULT_PAGE_SIZE;
+        //1.有游标,从快照中截取下一页
+        if (StrUtil.isNotBlank(cursor)) {
+            return nextGeoPage(cursor, pageSize);
+        }
+        //2.第一页,按距离排序查询,最多geoSnapshotLimit个
+        List<String> entries = new ArrayList<>();
+        for (ShopGeoIndex.Hit hit : searchNearby(typeId, x, y, NEARBY_RADIUS, geoSnapshotLimit)) {
+            entries.add(hit.getId() + "," + hit.getDistance());
+        }
+        //3.超过一页时保存剩余结果的快照
+        String nextCursor = null;
+        if (entries.size() > pageSize) {
+            String token = UUID.fastUUID().toString(true);
+            byte[] pageKey = (SHOP_GEO_PAGE_KEY + token).getBytes(StandardCharsets.UTF_8);
+            byte[][] rest = entries.subList(pageSize, entries.size()).stream()
+                    .map(e -> e.getBytes(StandardCharsets.UTF_8))
+                    .toArray(byte[][]::new);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                connection.rPush(pageKey, rest);
+                connection.expire(pageKey, TimeUnit.MINUTES.toSeconds(SHOP_GEO_PAGE_TTL));
+                return null;
+            });
+            nextCursor = token + ":0";
+        }
+        return Result.ok(geoPage(entries.subList(0, Math.min(pageSize, entries.size())), nextCursor));
+    }
+
+    //从快照中读取一页,多读一个判断是否还有下一页
+    private Result nextGeoPage(String cursor, int pageSize) {
+        int split = cursor.lastIndexOf(':');
+        long offset;
+        try {
+            offset = Long.parseLong(cursor.substring(split + 1));
+        } catch (NumberFormatException e) {
+            return Result.fail("游标无效");
+        }
+        if (split <= 0 || offset < 0) {
+            return Result.fail("游标无效");
+        }
+        String token = cursor.substring(0, split);
+        List<String> entries = stringRedisTemplate.opsForList().range(SHOP_GEO_PAGE_KEY + token, offset, offset + pageSize);
+        if (entries == null || entries.isEmpty()) {
+            //只有还有下一页时才返回游标,读不到说明快照已过期
+            return Result.fail("查询已过期,请重新查询");
+        }
+        String nextCursor = entries.size() > pageSize ? token + ":" + (offset + pageSize) : null;
+        return Result.ok(geoPage(entries.subList(0, Math.min(pageSize, entries.size())), nextCursor));
+    }
+
+    //解析 id,距离 并批量查询商铺
+    private GeoScrollResult geoPage(List<String> entries, String nextCursor) {
+        List<ShopGeoIndex.Hit> hits = new ArrayList<>(entries.size());
+        for (String entry : entries) {
+            int split = entry.indexOf(',');
+            hits.add(new ShopGeoIndex.Hit(Long.parseLong(entry.substring(0, split)), Double.parseDouble(entry.substring(split + 1))));
+        }
+        GeoScrollResult r = new GeoScrollResult();
+        r.setList(queryShopsWithDistance(hits));
+        r.setCursor(nextCursor);
+        return r;
+    }
+
+    //通过id批量查询出店铺,保持距离顺序并填入距离
+    private List<Shop> queryShopsWithDistance(List<ShopGeoIndex.Hit> hits) {
+        List<Long> ids = new ArrayList<>(hits.size());
+        Map<Long, Double> distanceMap = new HashMap<>(hits.size());
+        for (ShopGeoIndex.Hit hit : hits) {
+            ids.add(hit.getId());
+            distanceMap.put(hit.getId(), hit.getDistance());
+        }
+        List<Shop> shops = cacheClient.queryBatch(CACHE_SHOP_KEY, ids, Shop.class, this::listByIds, Shop::getId,
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
         for (Shop shop : shops) {
-            shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+            shop.setDistance(distanceMap.get(shop.getId()));
         }
-        return Result.ok(shops);
+        return shops;
     }
 
     //利用redis的setnx实现加锁
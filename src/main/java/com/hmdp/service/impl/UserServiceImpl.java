@@ -11,16 +11,23 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.RegexUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.CACHE_USER_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_TTL;
 import static com.hmdp.utils.RedisConstants.LOGIN_CODE_KEY;
 import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
 import static com.hmdp.utils.SystemConstants.USER_NICK_NAME_PREFIX;
@@ -39,6 +46,12 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
+    @Resource
+    private CacheClient cacheClient;
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         //1.校验手机号
@@ -101,6 +114,16 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok(token);
     }
 
+    //按ids的顺序批量查询用户,缓存中只保存UserDTO
+    @Override
+    public List<UserDTO> queryUserDTOs(List<Long> ids) {
+        return cacheClient.queryBatch(CACHE_USER_KEY, ids, UserDTO.class,
+                misses -> listByIds(misses).stream()
+                        .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                        .collect(Collectors.toList()),
+                UserDTO::getId, CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
     private User createUserWithPhone(String phone) {
         //1.创建用户
         User user = new User();
@@ -108,6 +131,7 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         user.setNickName(USER_NICK_NAME_PREFIX + RandomUtil.randomString(10));
         //2.保存用户
         save(user);
+        idBloomFilter.add(IdBloomFilter.USER, user.getId());
         return user;
     }
 }
@@ -1,31 +1,49 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.hmdp.dto.OrderStatus;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.OrderStatusStore;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockClient;
 import com.hmdp.utils.UserHolder;
-import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.domain.Range;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DLQ;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
 
 /**
  * <p>
@@ -41,105 +59,392 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
+    //默认为RedisIdWorker,hmdp.id.generator=snowflake时为SnowflakeIdWorker
+    @Resource
+    private IdGenerator idGenerator;
+
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private SeckillSoldOutRegistry soldOutRegistry;
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
     private RedissonClient redissonClient;
-    public static final DefaultRedisScript<Long> SECKILL_SCRIPT;
 
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
+    @Resource
+    private SeckillStockClient seckillStockClient;
+
+    @Resource
+    private OrderStatusStore orderStatusStore;
 
     //阻塞队列
     private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
 
+    //每个订单stream的消费者线程数,每个线程是消费者组中的一个独立消费者
+    @Value("${hmdp.seckill.consumer.threads:4}")
+    private int consumerThreads;
+
+    //每次XREADGROUP读取的最大消息数
+    @Value("${hmdp.seckill.consumer.batch-size:50}")
+    private int batchSize;
+
+    //XREADGROUP阻塞等待时间
+    @Value("${hmdp.seckill.consumer.block-ms:2000}")
+    private long blockMillis;
+
+    @Value("${server.port:8081}")
+    private int serverPort;
+
+    //回收空闲pending消息的间隔
+    @Value("${hmdp.seckill.reclaim.interval-ms:5000}")
+    private long reclaimIntervalMillis;
+
+    //pending消息空闲超过该时间才会被其他消费者认领
+    @Value("${hmdp.seckill.reclaim.min-idle-ms:30000}")
+    private long reclaimMinIdleMillis;
+
+    //投递次数达到该值的消息转入死信队列
+    @Value("${hmdp.seckill.reclaim.max-deliveries:5}")
+    private long maxDeliveries;
+
+    //每次XPENDING扫描的消息数
+    @Value("${hmdp.seckill.reclaim.scan-count:500}")
+    private long reclaimScanCount;
+
+    //死信队列保留的最大消息数,超出后裁剪最早的消息
+    @Value("${hmdp.seckill.reclaim.dlq-max-len:100000}")
+    private long dlqMaxLen;
+
+    //异步秒杀结果回调的线程数
+    @Value("${hmdp.seckill.callback-threads:4}")
+    private int callbackThreads;
+
     //线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    private ExecutorService seckillOrderExecutor;
+
+    private ScheduledExecutorService reclaimExecutor;
+
+    //异步秒杀的结果回调线程池,售罄广播是阻塞的redis调用,不能在lettuce的I/O线程上执行
+    private ExecutorService seckillCallbackExecutor;
+
+    private String reclaimConsumer;
+
+    private volatile boolean running = true;
+
+    /*
+     * 所有订单stream: 各hash tag的stream,以及升级前的streams.orders(处理完遗留消息后为空)
+     * 各stream位于不同的集群槽位,每个stream由各自的消费者线程单独XREADGROUP,不在一条命令中读取多个stream
+     * */
+    private List<String> streams;
+
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
 
     //在类加载后运行
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherHandler());
+        streams = new ArrayList<>(seckillStockClient.streamKeys());
+        streams.add(SECKILL_ORDER_STREAM);
+        streams.forEach(this::createGroupIfAbsent);
+        int threads = Math.max(1, consumerThreads);
+        //每个hash tag的stream consumerThreads个消费者,升级前的stream只需一个消费者处理遗留消息
+        seckillOrderExecutor = Executors.newFixedThreadPool((streams.size() - 1) * threads + 1,
+                new NamedThreadFactory("seckill-order-", true));
+        //消费者名称 = 主机名 + 端口 + 序号,保证多节点多线程下唯一,且重启后名称不变
+        String node = NetUtil.getLocalHostName() + "-" + serverPort;
+        for (String stream : streams) {
+            int count = SECKILL_ORDER_STREAM.equals(stream) ? 1 : threads;
+            for (int i = 0; i < count; i++) {
+                seckillOrderExecutor.submit(new VoucherHandler(stream, "c-" + node + "-" + i));
+            }
+        }
+        //定时回收所有消费者中空闲的pending消息
+        reclaimConsumer = "c-" + node + "-reclaim";
+        reclaimExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("seckill-reclaim-", true));
+        reclaimExecutor.scheduleWithFixedDelay(this::reclaimPending, reclaimIntervalMillis, reclaimIntervalMillis, TimeUnit.MILLISECONDS);
+        seckillCallbackExecutor = Executors.newFixedThreadPool(callbackThreads, new NamedThreadFactory("seckill-callback-", true));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        seckillOrderExecutor.shutdownNow();
+        reclaimExecutor.shutdownNow();
+        seckillCallbackExecutor.shutdownNow();
+    }
+
+    //消费者组不存在时创建(MKSTREAM),已存在时忽略BUSYGROUP错误
+    private void createGroupIfAbsent(String stream) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    bytes(stream), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            log.debug("消费者组已存在: " + e.getMessage());
+        }
     }
 
 
     //线程任务
     private class VoucherHandler implements Runnable {
-        String queueName = "streams.orders";
+        private final String stream;
+        private final String consumerName;
+
+        VoucherHandler(String stream, String consumerName) {
+            this.stream = stream;
+            this.consumerName = consumerName;
+        }
 
         @Override
         public void run() {
-            while (true) {
+            //启动时先处理上次遗留在pending-list中的消息
+            handlePendingList();
+            while (running) {
                 try {
-                    //1.获取消息队列中的订单信息
+                    //1.批量获取消息队列中的订单信息 XREADGROUP GROUP g1 cN COUNT n BLOCK ms STREAMS streams.orders:{seckill:t} >
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                            Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofMillis(blockMillis)),
+                            StreamOffset.create(stream, ReadOffset.lastConsumed())
                     );
                     //2.判断消息获取是否成功
                     if (list == null || list.isEmpty()) {
                         //2.1.获取消息失败,继续下一次循环
                         continue;
                     }
-                    //2.2获取消息成功,可以下单
-                    //2.3 解析list中订单消息
-                    MapRecord<String, Object, Object> record = list.get(0);
-
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    //3.创建订单
-                    handleCreateVoucherOrder(voucherOrder);
-                    //4.ACK确认
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                    //3.批量创建订单并ACK
+                    handleBatch(list);
                 } catch (Exception e) {
+                    if (!running) {
+                        break;
+                    }
                     log.error("处理订单异常", e);
                     handlePendingList();
                 }
-
             }
         }
 
+        //遍历一遍自己的pending-list,每条消息只处理一次,仍然失败的交给reclaimPending重试或转入死信队列
         private void handlePendingList() {
-            while (true) {
+            String offset = "0";
+            while (running) {
                 try {
-                    //1.获取消息队列中的订单信息
+                    //1.批量获取pending-list中offset之后的订单信息
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
+                            Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                            StreamReadOptions.empty().count(batchSize),
+                            StreamOffset.create(stream, ReadOffset.from(offset))
                     );
                     //2.判断消息获取是否成功
                     if (list == null || list.isEmpty()) {
-                        //2.1.获取消息失败,继续下一次循环
+                        //2.1.pending-list已遍历完,结束
                         break;
                     }
-                    //2.2获取消息成功,可以下单
-                    //2.3 解析list中订单消息
-                    MapRecord<String, Object, Object> record = list.get(0);
-
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    //3.创建订单
-                    handleCreateVoucherOrder(voucherOrder);
-                    //4.ACK确认
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                    handleBatch(list);
+                    offset = list.get(list.size() - 1).getId().getValue();
                 } catch (Exception e) {
                     log.error("处理handlePendingList订单异常", e);
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    break;
                 }
             }
         }
     }
 
+    //一批消息一个事务,成功后每个stream一次XACK确认整批消息
+    private void handleBatch(List<MapRecord<String, Object, Object>> list) {
+        //1.解析订单
+        List<VoucherOrder> orders = new ArrayList<>(list.size());
+        for (MapRecord<String, Object, Object> record : list) {
+            orders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+        }
+        Map<Long, OrderStatus> statuses;
+        try {
+            //2.同一事务批量创建订单
+            statuses = proxy.createVoucherOrders(orders);
+        } catch (Exception e) {
+            //3.整批失败时逐条重试,避免单条异常消息拖住整批
+            log.error("批量创建订单失败,逐条重试", e);
+            handleOneByOne(list);
+            return;
+        }
+        //4.写入订单状态,供客户端查询
+        orderStatusStore.save(statuses, owners(list));
+        //5.多id一次ACK
+        acknowledge(list);
+    }
+
+    private void handleOneByOne(List<MapRecord<String, Object, Object>> list) {
+        List<MapRecord<String, Object, Object>> acked = new ArrayList<>(list.size());
+        Map<Long, OrderStatus> statuses = new HashMap<>(list.size());
+        for (MapRecord<String, Object, Object> record : list) {
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+            try {
+                statuses.put(voucherOrder.getId(), proxy.createVoucherOrder(voucherOrder));
+                acked.add(record);
+            } catch (Exception e) {
+                //失败的消息留在pending-list中,等待下次处理
+                log.error("创建订单失败,id:" + voucherOrder.getId(), e);
+            }
+        }
+        orderStatusStore.save(statuses, owners(acked));
+        acknowledge(acked);
+    }
+
+    //按stream分组,每个stream一次XACK
+    private void acknowledge(List<MapRecord<String, Object, Object>> records) {
+        Map<String, List<RecordId>> byStream = new LinkedHashMap<>();
+        for (MapRecord<String, Object, Object> record : records) {
+            byStream.computeIfAbsent(record.getStream(), k -> new ArrayList<>()).add(record.getId());
+        }
+        byStream.forEach((stream, ids) ->
+                stringRedisTemplate.opsForStream().acknowledge(stream, SECKILL_ORDER_GROUP, ids.toArray(new RecordId[0])));
+    }
+
+
+    //认领所有消费者中空闲的pending消息重新处理,超过投递次数的转入死信队列,最后裁剪已确认的消息
+    private void reclaimPending() {
+        for (String stream : streams) {
+            reclaimPending(stream);
+        }
+    }
+
+    private void reclaimPending(String stream) {
+        try {
+            //1.XPENDING扫描整个消费者组
+            PendingMessages pending = stringRedisTemplate.opsForStream().pending(
+                    stream, SECKILL_ORDER_GROUP, Range.unbounded(), reclaimScanCount);
+            List<RecordId> idle = new ArrayList<>();
+            Map<String, Long> deliveries = new HashMap<>();
+            for (PendingMessage message : pending) {
+                if (message.getElapsedTimeSinceLastDelivery().toMillis() >= reclaimMinIdleMillis) {
+                    idle.add(message.getId());
+                    deliveries.put(message.getIdAsString(), message.getTotalDeliveryCount());
+                }
+            }
+            if (!idle.isEmpty()) {
+                //2.XCLAIM认领,多个节点同时认领时只有一个成功
+                List<MapRecord<String, Object, Object>> claimed = claim(stream, idle);
+                List<MapRecord<String, Object, Object>> retry = new ArrayList<>(claimed.size());
+                List<MapRecord<String, Object, Object>> dead = new ArrayList<>();
+                for (MapRecord<String, Object, Object> record : claimed) {
+                    Long count = deliveries.get(record.getId().getValue());
+                    (count != null && count >= maxDeliveries ? dead : retry).add(record);
+                }
+                //3.转入死信队列
+                moveToDeadLetter(dead, deliveries);
+                //4.重新处理
+                if (!retry.isEmpty()) {
+                    handleBatch(retry);
+                }
+            }
+            //5.裁剪已确认的消息
+            trimAcked(stream);
+        } catch (Exception e) {
+            log.error("回收pending消息异常:" + stream, e);
+        }
+    }
+
+    private List<MapRecord<String, Object, Object>> claim(String stream, List<RecordId> ids) {
+        List<ByteRecord> records = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.streamCommands().xClaim(bytes(stream), SECKILL_ORDER_GROUP, reclaimConsumer,
+                        Duration.ofMillis(reclaimMinIdleMillis), ids.toArray(new RecordId[0])));
+        if (records == null) {
+            return Collections.emptyList();
+        }
+        List<MapRecord<String, Object, Object>> list = new ArrayList<>(records.size());
+        for (ByteRecord record : records) {
+            Map<Object, Object> value = new HashMap<>();
+            record.getValue().forEach((k, v) -> value.put(string(k), string(v)));
+            list.add(MapRecord.create(stream, value).withId(record.getId()));
+        }
+        return list;
+    }
+
+    private void moveToDeadLetter(List<MapRecord<String, Object, Object>> dead, Map<String, Long> deliveries) {
+        if (dead.isEmpty()) {
+            return;
+        }
+        Map<Long, OrderStatus> statuses = new HashMap<>(dead.size());
+        for (MapRecord<String, Object, Object> record : dead) {
+            Map<String, String> value = new HashMap<>();
+            record.getValue().forEach((k, v) -> value.put(k.toString(), v.toString()));
+            value.put("sourceId", record.getId().getValue());
+            value.put("deliveries", String.valueOf(deliveries.get(record.getId().getValue())));
+            stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DLQ, value);
+            Object orderId = record.getValue().get("id");
+            if (orderId != null) {
+                statuses.put(Long.valueOf(orderId.toString()), OrderStatus.FAILED);
+            }
+            log.error("订单消息超过最大投递次数,转入死信队列:" + value);
+        }
+        //XTRIM MAXLEN ~ 限制死信队列长度
+        stringRedisTemplate.opsForStream().trim(SECKILL_ORDER_DLQ, dlqMaxLen, true);
+        orderStatusStore.save(statuses, owners(dead));
+        acknowledge(dead);
+    }
+
+    //订单id -> 下单用户id
+    private static Map<Long, Long> owners(List<MapRecord<String, Object, Object>> records) {
+        Map<Long, Long> owners = new HashMap<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            Object orderId = record.getValue().get("id");
+            Object userId = record.getValue().get("userId");
+            if (orderId != null && userId != null) {
+                owners.put(Long.valueOf(orderId.toString()), Long.valueOf(userId.toString()));
+            }
+        }
+        return owners;
+    }
+
+    /*
+     * XTRIM MINID删除已确认的消息(需要redis 6.2+)
+     * 先读last-delivered-id再读XPENDING: 此后新投递的消息id都大于last-delivered-id,不会被裁剪
+     * 裁剪位置取min(最早的未确认消息, last-delivered-id),不会越过未确认的消息
+     * */
+    private void trimAcked(String stream) {
+        //1.先读取消费者组的last-delivered-id
+        String lastDeliveredId = stringRedisTemplate.opsForStream().groups(stream).stream()
+                .filter(group -> SECKILL_ORDER_GROUP.equals(group.groupName()))
+                .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                .findFirst().orElse(null);
+        if (lastDeliveredId == null || "0-0".equals(lastDeliveredId)) {
+            return;
+        }
+        //2.再读取最早的未确认消息
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(stream, SECKILL_ORDER_GROUP);
+        RecordId minId = RecordId.of(lastDeliveredId);
+        if (summary != null && summary.getTotalPendingMessages() > 0) {
+            RecordId minPending = RecordId.of(summary.minMessageId());
+            if (compare(minPending, minId) < 0) {
+                minId = minPending;
+            }
+        }
+        String id = minId.getValue();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.execute("XTRIM", bytes(stream), bytes("MINID"), bytes("~"), bytes(id)));
+    }
+
+    //按时间戳和序号比较消息id
+    private static int compare(RecordId a, RecordId b) {
+        int c = Long.compare(a.getTimestamp(), b.getTimestamp());
+        return c != 0 ? c : Long.compare(a.getSequence(), b.getSequence());
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
 
 /*    //线程任务
     private class VoucherHandler implements Runnable {
@@ -162,48 +467,50 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     }*/
 
-    private void handleCreateVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        //创建锁对象
-        //SimpleRedisLock redisLock = new SimpleRedisLock("order:" + userId, stringRedisTemplate);
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        boolean isLock = lock.tryLock();
-        if (!isLock) {
-            //获取锁失败,代表同一个用户在不同设备多次访问该接口
-            log.error("不允许重复下单");
-            return;
-        }
-        try {
-            //获取锁成功
-            proxy.createVoucherOrder(voucherOrder);
-        } catch (IllegalStateException e) {
-            throw new RuntimeException(e);
-        } finally {
-            lock.unlock();
-        }
-    }
-
     @Override
     public Result seckKillVoucher(Long voucherId) {
+        //0.本地已标记售罄,直接返回
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
         Long userID = UserHolder.getUser().getId();
-        long orderId = redisIdWorker.nextId("order");
-        //1.执行lua脚本
-        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userID.toString(), String.valueOf(orderId)
-        );
+        long orderId = idGenerator.nextId("order");
+        //1.执行lua脚本,在用户所属的库存分片扣减
+        int r = seckillStockClient.deduct(voucherId, userID, orderId);
         //2.判断结果是否为0
-        int r = result.intValue();
         if (r != 0) {
             //2.1.不为0,没有购买资格
+            if (r == 1) {
+                //2.2.库存不足,标记售罄并广播
+                soldOutRegistry.markSoldOut(voucherId);
+            }
             return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
         }
-        //3.获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-
         return Result.ok(orderId);
     }
 
+    @Override
+    public CompletableFuture<Result> seckKillVoucherAsync(Long voucherId) {
+        //0.本地已标记售罄,直接返回
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return CompletableFuture.completedFuture(Result.fail("库存不足"));
+        }
+        //用户信息在ThreadLocal中,需在servlet线程上取出
+        Long userID = UserHolder.getUser().getId();
+        //1.异步生成订单id,执行lua脚本;回调切换到seckillCallbackExecutor,不在lettuce的I/O线程上访问redis
+        return idGenerator.nextIdAsync("order").thenComposeAsync(orderId ->
+                seckillStockClient.deductAsync(voucherId, userID, orderId).thenApplyAsync(r -> {
+                    //2.判断结果是否为0
+                    if (r != 0) {
+                        if (r == 1) {
+                            soldOutRegistry.markSoldOut(voucherId);
+                        }
+                        return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+                    }
+                    return Result.ok(orderId);
+                }, seckillCallbackExecutor), seckillCallbackExecutor);
+    }
+
 /*    @Override
     public Result seckKillVoucher(Long voucherId) {
         Long userID = UserHolder.getUser().getId();
@@ -261,7 +568,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         Long userId = user.getId();
 
         //创建锁对象
-        //SimpleRedisLock redisLock = new SimpleRedisLock("order:" + userId, stringRedisTemplate);
+        //SimpleRedisLock redisLock = new SimpleRedisLock("order:" + userId, stringRedisTemplate, redisScriptRegistry);
         RLock lock = redissonClient.getLock("order:" + userId);
         boolean isLock = lock.tryLock();
         if (!isLock) {
@@ -279,22 +586,77 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
     }*/
 
+    @Override
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
+    public Map<Long, OrderStatus> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        Map<Long, OrderStatus> statuses = new HashMap<>(voucherOrders.size());
+        //1.按优惠券分组,每组一次多行插入 + 一次库存扣减
+        Map<Long, List<VoucherOrder>> groups = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        for (Map.Entry<Long, List<VoucherOrder>> entry : groups.entrySet()) {
+            Long voucherId = entry.getKey();
+            List<VoucherOrder> group = entry.getValue();
+            //2.一人一单由(user_id, voucher_id)唯一索引保证,重复订单被忽略
+            int inserted = getBaseMapper().insertBatchIgnore(group);
+            markInserted(group, inserted, statuses);
+            if (inserted == 0) {
+                continue;
+            }
+            //3.按实际插入的行数扣减库存
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock=stock-" + inserted)
+                    .eq("voucher_id", voucherId).ge("stock", inserted)
+                    .update();
+            if (!success) {
+                //库存不足以覆盖整组,回滚整批,交由逐条处理
+                throw new IllegalStateException("库存不足,voucherId:" + voucherId);
+            }
+        }
+        return statuses;
+    }
 
-        Long userId = voucherOrder.getUserId();
-        //4.2一人一单
-        Integer count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-        if (count > 0) {
-            log.error("该用户已购买过一次");
+    /*
+     * 记录每个订单是否插入成功,有重复时才额外查询一次
+     * 按订单id查询: 已提交但ACK失败后重新投递的订单,表中已有的就是它本身,仍为CREATED
+     * */
+    private void markInserted(List<VoucherOrder> group, int inserted, Map<Long, OrderStatus> statuses) {
+        if (inserted == group.size()) {
+            group.forEach(o -> statuses.put(o.getId(), OrderStatus.CREATED));
             return;
         }
+        Set<Long> created = query().select("id")
+                .in("id", group.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                .list().stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        group.forEach(o -> statuses.put(o.getId(), created.contains(o.getId()) ? OrderStatus.CREATED : OrderStatus.DUPLICATE));
+    }
+
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        //只能查询自己的订单
+        return Result.ok(orderStatusStore.get(orderId, UserHolder.getUser().getId()));
+    }
+
+    @Override
+    @Transactional
+    public OrderStatus createVoucherOrder(VoucherOrder voucherOrder) {
+        //4.2一人一单,由唯一索引保证
+        int inserted = getBaseMapper().insertBatchIgnore(Collections.singletonList(voucherOrder));
+        if (inserted == 0) {
+            //重新投递的消息,订单已经创建过
+            if (query().eq("id", voucherOrder.getId()).count() > 0) {
+                return OrderStatus.CREATED;
+            }
+            log.error("该用户已购买过一次");
+            return OrderStatus.DUPLICATE;
+        }
         //4.3扣减库存
         boolean success = seckillVoucherService.update().setSql("stock=stock-1").eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0).update();
         if (!success) {
             log.error("抢购失败");
-            return;
+            //回滚已插入的订单
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return OrderStatus.FAILED;
         }
-        save(voucherOrder);
+        return OrderStatus.CREATED;
     }
 }
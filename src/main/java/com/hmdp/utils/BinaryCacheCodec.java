@@ -0,0 +1,442 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.entity.User;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * 二进制格式的缓存编解码,默认启用(hmdp.cache.codec=binary)
+ * 负载: 类型id(1) | 结构版本(1) | 类型(1,0单个对象 1列表) | 字段
+ * 字段按固定顺序写入,可为空的字段先写一个标记字节;整数使用zigzag变长编码,字符串为长度+utf8
+ * 新增字段时追加在末尾并提升结构版本,读取旧版本时缺少的字段保持为空
+ * 未注册的类型使用json格式
+ * */
+@Component
+@ConditionalOnProperty(name = "hmdp.cache.codec", havingValue = "binary", matchIfMissing = true)
+public class BinaryCacheCodec extends JsonCacheCodec {
+
+    private static final byte SINGLE = 0;
+    private static final byte LIST = 1;
+
+    private final Map<Class<?>, Schema<?>> schemasByType = new HashMap<>();
+    private final Schema<?>[] schemasById = new Schema<?>[16];
+
+    public BinaryCacheCodec() {
+        register(new Schema<Shop>(1, 1, Shop.class) {
+            @Override
+            void write(Shop shop, Output out) {
+                out.writeLong(shop.getId());
+                out.writeString(shop.getName());
+                out.writeLong(shop.getTypeId());
+                out.writeString(shop.getImages());
+                out.writeString(shop.getArea());
+                out.writeString(shop.getAddress());
+                out.writeDouble(shop.getX());
+                out.writeDouble(shop.getY());
+                out.writeLong(shop.getAvgPrice());
+                out.writeInt(shop.getSold());
+                out.writeInt(shop.getComments());
+                out.writeInt(shop.getScore());
+                out.writeString(shop.getOpenHours());
+                out.writeTime(shop.getCreateTime());
+                out.writeTime(shop.getUpdateTime());
+                out.writeDouble(shop.getDistance());
+            }
+
+            @Override
+            Shop read(Input in, int version) {
+                Shop shop = new Shop();
+                shop.setId(in.readLong());
+                shop.setName(in.readString());
+                shop.setTypeId(in.readLong());
+                shop.setImages(in.readString());
+                shop.setArea(in.readString());
+                shop.setAddress(in.readString());
+                shop.setX(in.readDouble());
+                shop.setY(in.readDouble());
+                shop.setAvgPrice(in.readLong());
+                shop.setSold(in.readInt());
+                shop.setComments(in.readInt());
+                shop.setScore(in.readInt());
+                shop.setOpenHours(in.readString());
+                shop.setCreateTime(in.readTime());
+                shop.setUpdateTime(in.readTime());
+                shop.setDistance(in.readDouble());
+                return shop;
+            }
+        });
+        register(new Schema<Blog>(2, 1, Blog.class) {
+            @Override
+            void write(Blog blog, Output out) {
+                out.writeLong(blog.getId());
+                out.writeLong(blog.getShopId());
+                out.writeLong(blog.getUserId());
+                out.writeString(blog.getIcon());
+                out.writeString(blog.getName());
+                out.writeBoolean(blog.getIsLike());
+                out.writeString(blog.getTitle());
+                out.writeString(blog.getImages());
+                out.writeString(blog.getContent());
+                out.writeInt(blog.getLiked());
+                out.writeInt(blog.getComments());
+                out.writeTime(blog.getCreateTime());
+                out.writeTime(blog.getUpdateTime());
+            }
+
+            @Override
+            Blog read(Input in, int version) {
+                Blog blog = new Blog();
+                blog.setId(in.readLong());
+                blog.setShopId(in.readLong());
+                blog.setUserId(in.readLong());
+                blog.setIcon(in.readString());
+                blog.setName(in.readString());
+                blog.setIsLike(in.readBoolean());
+                blog.setTitle(in.readString());
+                blog.setImages(in.readString());
+                blog.setContent(in.readString());
+                blog.setLiked(in.readInt());
+                blog.setComments(in.readInt());
+                blog.setCreateTime(in.readTime());
+                blog.setUpdateTime(in.readTime());
+                return blog;
+            }
+        });
+        register(new Schema<User>(3, 1, User.class) {
+            @Override
+            void write(User user, Output out) {
+                out.writeLong(user.getId());
+                out.writeString(user.getPhone());
+                out.writeString(user.getPassword());
+                out.writeString(user.getNickName());
+                out.writeString(user.getIcon());
+                out.writeTime(user.getCreateTime());
+                out.writeTime(user.getUpdateTime());
+            }
+
+            @Override
+            User read(Input in, int version) {
+                User user = new User();
+                user.setId(in.readLong());
+                user.setPhone(in.readString());
+                user.setPassword(in.readString());
+                user.setNickName(in.readString());
+                user.setIcon(in.readString());
+                user.setCreateTime(in.readTime());
+                user.setUpdateTime(in.readTime());
+                return user;
+            }
+        });
+        register(new Schema<UserDTO>(4, 1, UserDTO.class) {
+            @Override
+            void write(UserDTO user, Output out) {
+                out.writeLong(user.getId());
+                out.writeString(user.getNickName());
+                out.writeString(user.getIcon());
+            }
+
+            @Override
+            UserDTO read(Input in, int version) {
+                UserDTO user = new UserDTO();
+                user.setId(in.readLong());
+                user.setNickName(in.readString());
+                user.setIcon(in.readString());
+                return user;
+            }
+        });
+        register(new Schema<ShopType>(5, 1, ShopType.class) {
+            @Override
+            void write(ShopType shopType, Output out) {
+                out.writeLong(shopType.getId());
+                out.writeString(shopType.getName());
+                out.writeString(shopType.getIcon());
+                out.writeInt(shopType.getSort());
+                out.writeTime(shopType.getCreateTime());
+                out.writeTime(shopType.getUpdateTime());
+            }
+
+            @Override
+            ShopType read(Input in, int version) {
+                ShopType shopType = new ShopType();
+                shopType.setId(in.readLong());
+                shopType.setName(in.readString());
+                shopType.setIcon(in.readString());
+                shopType.setSort(in.readInt());
+                shopType.setCreateTime(in.readTime());
+                shopType.setUpdateTime(in.readTime());
+                return shopType;
+            }
+        });
+    }
+
+    @Override
+    public byte[] encode(Object value, long expireAt, int rebuildMillis) {
+        Schema<Object> schema = value == null ? null : schema(value.getClass());
+        if (schema == null) {
+            return super.encode(value, expireAt, rebuildMillis);
+        }
+        Output out = header(schema, SINGLE, expireAt, rebuildMillis);
+        schema.write(value, out);
+        return out.toByteArray();
+    }
+
+    @Override
+    public <T> byte[] encodeList(List<T> values, Class<T> type, long expireAt) {
+        Schema<Object> schema = schema(type);
+        if (schema == null) {
+            return super.encodeList(values, type, expireAt);
+        }
+        Output out = header(schema, LIST, expireAt, 0);
+        out.writeVarLong(values.size());
+        for (T value : values) {
+            out.writeByte(value == null ? 0 : 1);
+            if (value != null) {
+                schema.write(value, out);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public <R> CacheEntry<R> decode(byte[] data, Class<R> type) {
+        if (!hasHeader(data) || format(data) != FORMAT_BINARY) {
+            return super.decode(data, type);
+        }
+        Input in = new Input(data);
+        Schema<?> schema = readSchema(in, type, SINGLE);
+        return new CacheEntry<>(type.cast(schema.read(in, in.version)), expireAt(data), rebuildMillis(data));
+    }
+
+    @Override
+    public <T> CacheEntry<List<T>> decodeList(byte[] data, Class<T> type) {
+        if (!hasHeader(data) || format(data) != FORMAT_BINARY) {
+            return super.decodeList(data, type);
+        }
+        Input in = new Input(data);
+        Schema<?> schema = readSchema(in, type, LIST);
+        int size = (int) in.readVarLong();
+        List<T> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(in.readByte() == 0 ? null : type.cast(schema.read(in, in.version)));
+        }
+        return new CacheEntry<>(values, expireAt(data));
+    }
+
+    private void register(Schema<?> schema) {
+        schemasByType.put(schema.type, schema);
+        schemasById[schema.typeId] = schema;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Schema<Object> schema(Class<?> type) {
+        return (Schema<Object>) schemasByType.get(type);
+    }
+
+    private static Output header(Schema<?> schema, byte kind, long expireAt, int rebuildMillis) {
+        Output out = new Output();
+        out.reserveHeader(FORMAT_BINARY, expireAt, rebuildMillis);
+        out.writeByte(schema.typeId);
+        out.writeByte(schema.version);
+        out.writeByte(kind);
+        return out;
+    }
+
+    private Schema<?> readSchema(Input in, Class<?> type, byte kind) {
+        int typeId = in.readByte();
+        Schema<?> schema = typeId > 0 && typeId < schemasById.length ? schemasById[typeId] : null;
+        if (schema == null || !type.isAssignableFrom(schema.type)) {
+            throw new IllegalStateException("缓存类型不匹配:" + typeId + ",期望:" + type.getName());
+        }
+        in.version = in.readByte();
+        if (in.version > schema.version) {
+            throw new IllegalStateException("不支持的结构版本:" + schema.type.getSimpleName() + " v" + in.version);
+        }
+        if (in.readByte() != kind) {
+            throw new IllegalStateException("缓存类型不匹配:" + schema.type.getSimpleName());
+        }
+        return schema;
+    }
+
+    private abstract static class Schema<T> {
+        private final int typeId;
+        private final int version;
+        private final Class<T> type;
+
+        Schema(int typeId, int version, Class<T> type) {
+            this.typeId = typeId;
+            this.version = version;
+            this.type = type;
+        }
+
+        abstract void write(T value, Output out);
+
+        abstract T read(Input in, int version);
+    }
+
+    private static final class Output {
+        private byte[] buf = new byte[256];
+        private int size;
+
+        void reserveHeader(byte format, long expireAt, int rebuildMillis) {
+            writeHeader(buf, format, expireAt, rebuildMillis);
+            size = HEADER_LENGTH;
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[size++] = (byte) b;
+        }
+
+        void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[size++] = (byte) v;
+        }
+
+        void writeLong(Long v) {
+            writeByte(v == null ? 0 : 1);
+            if (v != null) {
+                writeVarLong(v << 1 ^ v >> 63);
+            }
+        }
+
+        void writeInt(Integer v) {
+            writeLong(v == null ? null : v.longValue());
+        }
+
+        void writeDouble(Double v) {
+            writeByte(v == null ? 0 : 1);
+            if (v != null) {
+                long bits = Double.doubleToRawLongBits(v);
+                ensure(8);
+                for (int i = 0; i < 8; i++) {
+                    buf[size++] = (byte) (bits >>> ((7 - i) << 3));
+                }
+            }
+        }
+
+        void writeBoolean(Boolean v) {
+            writeByte(v == null ? 0 : v ? 2 : 1);
+        }
+
+        //0表示null,否则为字节长度+1
+        void writeString(String v) {
+            if (v == null) {
+                writeVarLong(0);
+                return;
+            }
+            byte[] bytes = v.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length + 1L);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+        }
+
+        //按UTC换算为秒和纳秒,只用于还原同一个LocalDateTime
+        void writeTime(LocalDateTime v) {
+            writeLong(v == null ? null : v.toEpochSecond(ZoneOffset.UTC));
+            if (v != null) {
+                writeVarLong(v.getNano());
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+
+        private void ensure(int n) {
+            if (size + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, size + n));
+            }
+        }
+    }
+
+    private static final class Input {
+        private final byte[] buf;
+        private int pos;
+        private int version;
+
+        Input(byte[] buf) {
+            this.buf = buf;
+            this.pos = headerLength(buf);
+        }
+
+        int readByte() {
+            return buf[pos++];
+        }
+
+        long readVarLong() {
+            long v = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buf[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+        }
+
+        Long readLong() {
+            if (readByte() == 0) {
+                return null;
+            }
+            long v = readVarLong();
+            return v >>> 1 ^ -(v & 1);
+        }
+
+        Integer readInt() {
+            Long v = readLong();
+            return v == null ? null : v.intValue();
+        }
+
+        Double readDouble() {
+            if (readByte() == 0) {
+                return null;
+            }
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = bits << 8 | (buf[pos++] & 0xFF);
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        Boolean readBoolean() {
+            int v = readByte();
+            return v == 0 ? null : v == 2;
+        }
+
+        String readString() {
+            int length = (int) readVarLong() - 1;
+            if (length < 0) {
+                return null;
+            }
+            String v = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return v;
+        }
+
+        LocalDateTime readTime() {
+            Long seconds = readLong();
+            if (seconds == null) {
+                return null;
+            }
+            return LocalDateTime.ofEpochSecond(seconds, (int) readVarLong(), ZoneOffset.UTC);
+        }
+    }
+}
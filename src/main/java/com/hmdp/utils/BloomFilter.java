@@ -0,0 +1,111 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * 基于long数组的布隆过滤器,只支持long类型的元素
+ * 位的排列与redis的bitmap一致(第0位是第0个字节的最高位),可以直接与redis中的bitmap互相转换
+ * */
+public class BloomFilter {
+
+    private final long numBits;
+    private final int numHashes;
+    private final AtomicLongArray words;
+
+    public BloomFilter(long numBits, int numHashes) {
+        //位数按64对齐
+        this.numBits = Math.max(64, (numBits + 63) >>> 6 << 6);
+        this.numHashes = Math.max(1, numHashes);
+        this.words = new AtomicLongArray((int) (this.numBits >>> 6));
+    }
+
+    //根据预计元素数量和误判率计算位数与哈希函数个数
+    public static BloomFilter create(long expectedInsertions, double fpp) {
+        long n = Math.max(1, expectedInsertions);
+        long numBits = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        int numHashes = (int) Math.round((double) numBits / n * Math.log(2));
+        return new BloomFilter(numBits, numHashes);
+    }
+
+    //从redis的bitmap恢复,bitmap比位数短时缺少的部分视为0
+    public static BloomFilter fromBitmap(long numBits, int numHashes, byte[] bitmap) {
+        BloomFilter filter = new BloomFilter(numBits, numHashes);
+        int length = bitmap == null ? 0 : Math.min(bitmap.length, filter.words.length() << 3);
+        for (int i = 0; i < length; i++) {
+            if (bitmap[i] != 0) {
+                int word = i >>> 3;
+                int shift = (7 - (i & 7)) << 3;
+                filter.words.set(word, filter.words.get(word) | (bitmap[i] & 0xFFL) << shift);
+            }
+        }
+        return filter;
+    }
+
+    public void add(long id) {
+        for (long offset : offsets(id)) {
+            set(offset);
+        }
+    }
+
+    public boolean mightContain(long id) {
+        for (long offset : offsets(id)) {
+            if (!get(offset)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //元素对应的各个位的下标,使用双重哈希 h1 + i * h2
+    public long[] offsets(long id) {
+        long h1 = mix(id);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+        long[] offsets = new long[numHashes];
+        for (int i = 0; i < numHashes; i++) {
+            offsets[i] = Math.floorMod(h1 + i * h2, numBits);
+        }
+        return offsets;
+    }
+
+    public void set(long offset) {
+        int word = (int) (offset >>> 6);
+        long mask = 1L << (63 - (offset & 63));
+        while (true) {
+            long old = words.get(word);
+            if ((old & mask) != 0 || words.compareAndSet(word, old, old | mask)) {
+                return;
+            }
+        }
+    }
+
+    public boolean get(long offset) {
+        return (words.get((int) (offset >>> 6)) & 1L << (63 - (offset & 63))) != 0;
+    }
+
+    //转换为redis的bitmap,每个long按大端序展开为8个字节
+    public byte[] toBitmap() {
+        byte[] bitmap = new byte[words.length() << 3];
+        for (int i = 0; i < words.length(); i++) {
+            long word = words.get(i);
+            for (int j = 0; j < 8; j++) {
+                bitmap[(i << 3) + j] = (byte) (word >>> ((7 - j) << 3));
+            }
+        }
+        return bitmap;
+    }
+
+    public long getNumBits() {
+        return numBits;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    //splitmix64的混合函数
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
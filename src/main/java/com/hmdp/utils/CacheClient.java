@@ -1,67 +1,193 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.lang.TypeReference;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.ThreadUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import com.hmdp.config.CacheTtlProperties;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
-import java.time.LocalDateTime;
-import java.util.Objects;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
 
 @Slf4j
 @Component
-public class CacheClient {
-    public static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
+public class CacheClient implements MessageListener {
 
     private final StringRedisTemplate stringRedisTemplate;
 
+    //一级缓存,命中时不访问redis
+    private final NearCache nearCache;
+
+    private final boolean nearCacheEnabled;
+
+    private final long nearCacheTtlMillis;
+
+    private final RedisScriptRegistry redisScriptRegistry;
+
+    private final IdBloomFilter idBloomFilter;
+
+    private final CacheCodec cacheCodec;
+
+    //按key前缀的过期策略
+    private final CacheTtlProperties cacheTtlProperties;
+
+    //后台重建共享的线程池,同一个key只排队一次
+    private final CacheRebuildExecutor cacheRebuildExecutor;
+
+    //缓存的空值
+    private static final byte[] EMPTY = new byte[0];
+
+    //提前刷新时的beta,大于1时更早刷新
+    @Value("${hmdp.cache.xfetch.beta:1.0}")
+    private double xfetchBeta;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    //正在重建的key,同一节点的并发未命中共享同一次重建
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate,
+                       RedisMessageListenerContainer redisMessageListenerContainer,
+                       RedisScriptRegistry redisScriptRegistry,
+                       IdBloomFilter idBloomFilter,
+                       CacheCodec cacheCodec,
+                       CacheTtlProperties cacheTtlProperties,
+                       CacheRebuildExecutor cacheRebuildExecutor,
+                       @Value("${hmdp.cache.near.enabled:true}") boolean nearCacheEnabled,
+                       @Value("${hmdp.cache.near.max-bytes:67108864}") long nearCacheMaxBytes,
+                       @Value("${hmdp.cache.near.ttl-seconds:60}") long nearCacheTtlSeconds) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.nearCache = new NearCache(nearCacheMaxBytes);
+        this.nearCacheEnabled = nearCacheEnabled;
+        this.nearCacheTtlMillis = TimeUnit.SECONDS.toMillis(nearCacheTtlSeconds);
+        this.redisScriptRegistry = redisScriptRegistry;
+        this.idBloomFilter = idBloomFilter;
+        this.cacheCodec = cacheCodec;
+        this.cacheTtlProperties = cacheTtlProperties;
+        this.cacheRebuildExecutor = cacheRebuildExecutor;
+        //订阅其他节点的失效通知
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        writeValue(key, value, time, unit);
+        nearCache.invalidate(key);
+    }
+
+    //通过管道批量写入,过期时间按key前缀的策略随机延长,避免同时过期
+    public <R, ID> void setBatch(String keyPrefix, Collection<R> values, Function<R, ID> idGetter, Long time, TimeUnit unit) {
+        CacheTtlProperties.Policy policy = cacheTtlProperties.resolve(keyPrefix);
+        long now = System.currentTimeMillis();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (R value : values) {
+                String key = keyPrefix + idGetter.apply(value);
+                connection.set(bytes(key), cacheCodec.encode(value, policy.softExpireAt(now)),
+                        Expiration.milliseconds(policy.hardMillis(time, unit)), RedisStringCommands.SetOption.upsert());
+                nearCache.invalidate(key);
+            }
+            return null;
+        });
+    }
+
+    //time为null时不设置过期时间
+    public <T> void setList(String key, List<T> values, Class<T> type, Long time, TimeUnit unit) {
+        write(key, cacheCodec.encodeList(values, type, 0), time, unit);
+    }
+
+    //未命中或无法解析时返回null
+    public <T> List<T> getList(String key, Class<T> type) {
+        byte[] data = read(key);
+        if (data == null || data.length == 0) {
+            return null;
+        }
+        try {
+            return cacheCodec.decodeList(data, type).getValue();
+        } catch (RuntimeException e) {
+            log.warn("缓存解析失败,按未命中处理:" + key, e);
+            return null;
+        }
+    }
+
+    //删除缓存,并通知所有节点清除一级缓存
+    public void delete(String key) {
+        //在事务中调用时提交后再删除,避免提交前的并发读取把旧数据写回redis和一级缓存
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    evict(key);
+                }
+            });
+        } else {
+            evict(key);
+        }
+    }
+
+    private void evict(String key) {
+        stringRedisTemplate.delete(key);
+        nearCache.invalidate(key);
+        try {
+            stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+        } catch (Exception e) {
+            //通知失败时其他节点的一级缓存在ttl后过期
+            log.warn("发布缓存失效消息失败:" + key, e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        nearCache.invalidate(new String(message.getBody(), StandardCharsets.UTF_8));
     }
 
-    //设置逻辑过期
+    //设置逻辑过期,过期时间写在编码头部
     public void setWithLogicExpire(String key, Object value, Long time, TimeUnit unit) {
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        long expireAt = System.currentTimeMillis() + unit.toMillis(time);
         //写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        write(key, cacheCodec.encode(value, expireAt), null, null);
     }
 
     //解决缓存击穿,通过逻辑过期
     public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         //1.从redis中查询商铺缓存
         String key = keyPrefix + id;
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
+        byte[] data = read(key);
         //2.判断是否存在
-        if (StrUtil.isBlank(shopJson)) {
+        CacheEntry<R> entry = data == null || data.length == 0 ? null : decode(key, data, type);
+        if (entry == null) {
             //3.不存在,直接返回
             return null;
         }
         //命中
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        if (expireTime.isAfter(LocalDateTime.now())) {
+        R r = entry.getValue();
+        if (!entry.isExpired(System.currentTimeMillis())) {
             //未过期
             return r;
         }
@@ -71,97 +197,391 @@ public class CacheClient {
         //判断锁是否获取成功
         if (isLock) {
 
-            //获取锁成功,调用其他线程执行重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+            //获取锁成功,调用其他线程执行重建,队列已满时释放锁
+            boolean submitted = cacheRebuildExecutor.submit(key, () -> {
                 try {
                     R r1 = dbFallback.apply(id);
                     this.setWithLogicExpire(key, r1, time, unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
                 } finally {
                     unlock(lockKey);
                 }
             });
+            if (!submitted) {
+                unlock(lockKey);
+            }
 
         }
         //如果加锁的话就,返回过期的商铺信息
         return r;
     }
 
+    /*
+     * 提前刷新(XFetch)模式的逻辑过期
+     * 缓存头部记录上次重建的耗时delta,每次读取时以 now - delta * beta * ln(random) >= expireAt 判断是否刷新
+     * 越接近过期、重建越慢,提前刷新的概率越高,各节点的刷新时间自然错开,几乎不会同时竞争锁
+     * 未命中时同步加载并写入,不依赖预热
+     * */
+    public <R, ID> R queryWithEarlyRefresh(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        if (!idBloomFilter.mightContain(keyPrefix, id)) {
+            return null;
+        }
+        //1.从redis中查询缓存
+        byte[] data = read(key);
+        if (data != null && data.length == 0) {
+            return null;
+        }
+        CacheEntry<R> entry = data == null ? null : decode(key, data, type);
+        if (entry == null) {
+            //2.未命中,同步重建
+            return rebuild(key, id, dbFallback, time, unit, true);
+        }
+        //3.按概率决定是否提前刷新,当前值照常返回
+        long now = System.currentTimeMillis();
+        long delta = Math.max(entry.getRebuildMillis(), 1);
+        double gap = -delta * xfetchBeta * Math.log(ThreadLocalRandom.current().nextDouble(Double.MIN_VALUE, 1));
+        if (entry.getExpireAt() > 0 && now + gap >= entry.getExpireAt()) {
+            scheduleRefresh(key, id, dbFallback, time, unit, true);
+        }
+        return entry.getValue();
+    }
+
+    //提交后台刷新,本节点已在刷新同一个key或队列已满时跳过,调用方照常返回旧值
+    private <R, ID> void scheduleRefresh(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit, boolean logical) {
+        cacheRebuildExecutor.submit(key, () -> refresh(key, id, dbFallback, time, unit, logical));
+    }
+
+    //后台刷新,其他节点正在刷新同一个key时跳过
+    private <R, ID> void refresh(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit, boolean logical) {
+        String lockKey = "lock:" + key;
+        String token = UUID.randomUUID().toString(true);
+        if (!tryLock(lockKey, token)) {
+            return;
+        }
+        try {
+            rebuild(key, id, dbFallback, time, unit, logical);
+            nearCache.invalidate(key);
+        } finally {
+            unlock(lockKey, token);
+        }
+    }
+
+    /*
+     * 查询数据库并写入
+     * logical为true时按逻辑过期写入,头部记录逻辑过期时间和本次重建耗时,redis中不过期
+     * 否则按key前缀的策略写入软过期时间和redis过期时间
+     * */
+    private <R, ID> R rebuild(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit, boolean logical) {
+        long start = System.currentTimeMillis();
+        R r = dbFallback.apply(id);
+        long now = System.currentTimeMillis();
+        if (r == null) {
+            write(key, EMPTY, CACHE_NULL_TTL, TimeUnit.MINUTES);
+            return null;
+        }
+        if (!logical) {
+            writeValue(key, r, time, unit);
+            return r;
+        }
+        int rebuildMillis = (int) Math.min(now - start, Integer.MAX_VALUE);
+        write(key, cacheCodec.encode(r, now + unit.toMillis(time), rebuildMillis), null, null);
+        return r;
+    }
+
     //解决缓存穿透
     public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
-        //1.从redis中查询商铺缓存
         String key = keyPrefix + id;
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            //3.存在,直接返回
-            return JSONUtil.toBean(shopJson, type);
+        //0.布隆过滤器判定不存在,直接返回
+        if (!idBloomFilter.mightContain(keyPrefix, id)) {
+            return null;
         }
+        //查询一级缓存,每次命中都从字节重新解码,调用方修改返回的对象不影响缓存
+        if (nearCacheEnabled) {
+            Object local = nearCache.get(key);
+            if (local == NearCache.NULL) {
+                return null;
+            }
+            CacheEntry<R> cached = local == null ? null : decode(key, (byte[]) local, type);
+            if (cached != null) {
+                return cached.getValue();
+            }
+        }
+        //1.从redis中查询商铺缓存
+        byte[] data = read(key, time, unit);
         //判断命中的是否是空值
-        if (Objects.equals(shopJson, "")) {
+        if (data != null && data.length == 0) {
             //返回错误信息
+            putNear(key, null);
             return null;
         }
+        //2.判断是否存在
+        CacheEntry<R> entry = data == null ? null : decode(key, data, type);
+        if (entry != null) {
+            //3.存在,直接返回,超过软过期时间的在后台刷新
+            refreshIfStale(entry, key, id, dbFallback, time, unit);
+            putNear(key, data);
+            return entry.getValue();
+        }
         //4.不存在,根据id查询数据库
         R r = dbFallback.apply(id);
         //5.数据库中不存在,返回错误
         if (r == null) {
-            stringRedisTemplate.opsForValue().set(key, "", time, unit);
+            write(key, EMPTY, time, unit);
             return null;
         }
         //6.数据库查询完后,向redis写入
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(r), time, unit);
+        byte[] encoded = writeValue(key, r, time, unit);
+        putNear(key, encoded);
         return r;
     }
 
+    /*
+     * 批量查询,按ids的顺序返回,数据库中不存在的id不出现在结果中
+     * 一次MGET读取缓存,未命中的id一次查询数据库,再通过管道写回
+     * 不经过一级缓存,返回的对象都是新解码的,调用方可以修改
+     * */
+    public <R, ID> List<R> queryBatch(String keyPrefix, List<ID> ids, Class<R> type,
+                                      Function<Collection<ID>, ? extends Collection<R>> dbBatchFallback,
+                                      Function<R, ID> idGetter, Long time, TimeUnit unit) {
+        if (ids == null || ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        //1.去重,排除布隆过滤器判定不存在的id
+        List<ID> candidates = ids.stream()
+                .distinct()
+                .filter(id -> idBloomFilter.mightContain(keyPrefix, id))
+                .collect(Collectors.toList());
+        Map<ID, R> found = new HashMap<>(candidates.size() * 2);
+        if (!candidates.isEmpty()) {
+            //2.一次MGET读取缓存
+            byte[][] keys = new byte[candidates.size()][];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = bytes(keyPrefix + candidates.get(i));
+            }
+            List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(keys));
+            List<ID> misses = new ArrayList<>();
+            for (int i = 0; i < keys.length; i++) {
+                ID id = candidates.get(i);
+                byte[] data = values == null ? null : values.get(i);
+                if (data != null && data.length == 0) {
+                    //缓存的空值
+                    continue;
+                }
+                CacheEntry<R> entry = data == null ? null : decode(keyPrefix + id, data, type);
+                if (entry == null) {
+                    misses.add(id);
+                } else {
+                    found.put(id, entry.getValue());
+                }
+            }
+            //3.未命中的id一次查询数据库
+            if (!misses.isEmpty()) {
+                CacheTtlProperties.Policy policy = cacheTtlProperties.resolve(keyPrefix);
+                long now = System.currentTimeMillis();
+                Map<ID, byte[]> loaded = new HashMap<>(misses.size() * 2);
+                for (R r : dbBatchFallback.apply(misses)) {
+                    ID id = idGetter.apply(r);
+                    found.put(id, r);
+                    loaded.put(id, cacheCodec.encode(r, policy.softExpireAt(now)));
+                }
+                //4.通过管道写回,数据库中不存在的写入空值,过期时间按策略随机延长
+                long nullMillis = TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL);
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (ID id : misses) {
+                        byte[] data = loaded.get(id);
+                        long ttl = data == null ? policy.jitter(nullMillis) : policy.hardMillis(time, unit);
+                        connection.set(bytes(keyPrefix + id), data == null ? EMPTY : data,
+                                Expiration.milliseconds(ttl), RedisStringCommands.SetOption.upsert());
+                    }
+                    return null;
+                });
+            }
+        }
+        //5.按请求的顺序组装
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    private void putNear(String key, byte[] data) {
+        if (nearCacheEnabled) {
+            nearCache.put(key, data, data == null ? 1 : data.length, nearCacheTtlMillis);
+        }
+    }
+
     //解决缓存击穿,通过互斥锁
+    //同一节点上同一个key的并发未命中共享一次重建,只有发起重建的线程去竞争redis锁,其余线程等待结果
     public <R, ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         //1.从redis中查询商铺缓存
         String key = keyPrefix + id;
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            //3.存在,直接返回
-            R r = JSONUtil.toBean(shopJson, type);
-            return r;
+        if (!idBloomFilter.mightContain(keyPrefix, id)) {
+            return null;
         }
+        byte[] data = read(key, time, unit);
         //判断命中的是否是空值
-        if (Objects.equals(shopJson, "")) {
+        if (data != null && data.length == 0) {
             //返回错误信息
             return null;
         }
+        //2.判断是否存在
+        CacheEntry<R> entry = data == null ? null : decode(key, data, type);
+        if (entry != null) {
+            //3.存在,直接返回,超过软过期时间的在后台刷新
+            refreshIfStale(entry, key, id, dbFallback, time, unit);
+            return entry.getValue();
+        }
         //4.实现缓存重建
-        //4.1获取互斥锁
-        String lockKey = "lock:shop:" + id;
-        R r1 = null;
+        //4.1本节点已有线程在重建,等待其完成
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            return type.cast(await(existing, key, id, dbFallback));
+        }
+        //4.2由当前线程重建
         try {
-            boolean islock = tryLock(lockKey);
-            //4.2判断是否获取成功
-            if (!islock) {
-                //4.3失败,休眠重试
-                Thread.sleep(50);
-                return queryWithMutex(keyPrefix, id, type, dbFallback, time, unit);
-            }
+            R r = rebuildWithLock(key, id, type, dbFallback, time, unit);
+            flight.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
 
-            //4.4 获取锁成功,根据id查询数据库
-            r1 = dbFallback.apply(id);
-            //模拟重建延迟
-            Thread.sleep(200);
+    //获取跨节点互斥锁后查询数据库;锁被其他节点持有时轮询redis等待其写入,超过锁的有效期后自行查询
+    private <R, ID> R rebuildWithLock(String key, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String lockKey = "lock:" + key;
+        String token = UUID.randomUUID().toString(true);
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LOCK_SHOP_TTL);
+        while (!tryLock(lockKey, token)) {
+            if (System.currentTimeMillis() > deadline) {
+                log.warn("等待缓存重建超时,直接查询数据库:" + key);
+                return dbFallback.apply(id);
+            }
+            ThreadUtil.sleep(50);
+            byte[] data = read(key);
+            if (data != null) {
+                return valueOf(key, data, type, dbFallback, id);
+            }
+        }
+        try {
+            //获取锁后再次检查,其他节点可能已经完成重建
+            byte[] data = read(key);
+            if (data != null && data.length == 0) {
+                return null;
+            }
+            CacheEntry<R> entry = data == null ? null : decode(key, data, type);
+            if (entry != null) {
+                return entry.getValue();
+            }
+            //根据id查询数据库
+            R r = dbFallback.apply(id);
             //5.数据库中不存在,返回错误
-            if (r1 == null) {
-                stringRedisTemplate.opsForValue().set(key, "", time, unit);
+            if (r == null) {
+                write(key, EMPTY, time, unit);
                 return null;
             }
             //6.数据库查询完后,向redis写入
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(r1), time, unit);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+            writeValue(key, r, time, unit);
+            return r;
         } finally {
             //7.释放互斥锁
-            unlock(lockKey);
+            unlock(lockKey, token);
+        }
+    }
+
+    //其他节点写入的值,空值返回null,无法解析时查询数据库
+    private <R, ID> R valueOf(String key, byte[] data, Class<R> type, Function<ID, R> dbFallback, ID id) {
+        if (data.length == 0) {
+            return null;
+        }
+        CacheEntry<R> entry = decode(key, data, type);
+        return entry != null ? entry.getValue() : dbFallback.apply(id);
+    }
+
+    private <R, ID> void refreshIfStale(CacheEntry<R> entry, String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        if (entry.isExpired(System.currentTimeMillis())) {
+            scheduleRefresh(key, id, dbFallback, time, unit, false);
+        }
+    }
+
+    private byte[] read(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(bytes(key)));
+    }
+
+    //策略开启sliding时通过GETEX读取并重置过期时间,命中空值时恢复为空值的过期时间
+    private byte[] read(String key, Long time, TimeUnit unit) {
+        CacheTtlProperties.Policy policy = cacheTtlProperties.resolve(key);
+        if (!policy.isSliding() || time == null) {
+            return read(key);
+        }
+        byte[] rawKey = bytes(key);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> {
+            byte[] data = connection.getEx(rawKey, Expiration.milliseconds(policy.hardMillis(time, unit)));
+            if (data != null && data.length == 0) {
+                connection.pExpire(rawKey, policy.jitter(TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL)));
+            }
+            return data;
+        });
+    }
+
+    //time为null时不设置过期时间,否则按key前缀的策略随机延长
+    private void write(String key, byte[] data, Long time, TimeUnit unit) {
+        Expiration expiration = time == null ? Expiration.persistent()
+                : Expiration.milliseconds(cacheTtlProperties.resolve(key).jitter(unit.toMillis(time)));
+        stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.set(bytes(key), data, expiration, RedisStringCommands.SetOption.upsert()));
+    }
+
+    //按key前缀的策略写入: 头部记录软过期时间,redis过期时间为硬过期时间
+    private byte[] writeValue(String key, Object value, Long time, TimeUnit unit) {
+        CacheTtlProperties.Policy policy = cacheTtlProperties.resolve(key);
+        byte[] data = cacheCodec.encode(value, policy.softExpireAt(System.currentTimeMillis()));
+        Expiration expiration = Expiration.milliseconds(policy.hardMillis(time, unit));
+        stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.set(bytes(key), data, expiration, RedisStringCommands.SetOption.upsert()));
+        return data;
+    }
+
+    //无法解析的缓存(格式或版本不兼容)按未命中处理,重建后覆盖
+    private <R> CacheEntry<R> decode(String key, byte[] data, Class<R> type) {
+        try {
+            return cacheCodec.decode(data, type);
+        } catch (RuntimeException e) {
+            log.warn("缓存解析失败,按未命中处理:" + key, e);
+            return null;
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*
+     * 等待本节点的重建线程
+     * 重建线程最多轮询LOCK_SHOP_TTL秒后查询数据库,查询数据库最多占用锁的有效期,等待时间取两者之和
+     * 仍然超时时直接查询数据库,不抛出异常
+     * */
+    private <ID> Object await(CompletableFuture<Object> future, String key, ID id, Function<ID, ?> dbFallback) {
+        try {
+            return future.get(LOCK_SHOP_TTL * 2, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        } catch (TimeoutException e) {
+            log.warn("等待本节点缓存重建超时,直接查询数据库:" + key);
+            return dbFallback.apply(id);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
         }
-        return r1;
     }
 
     //利用redis的setnx实现加锁
@@ -174,4 +594,14 @@ public class CacheClient {
     private void unlock(String key) {
         stringRedisTemplate.delete(key);
     }
+
+    private boolean tryLock(String key, String token) {
+        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, token, LOCK_SHOP_TTL, TimeUnit.SECONDS);
+        return BooleanUtil.isTrue(flag);
+    }
+
+    //只释放自己持有的锁
+    private void unlock(String key, String token) {
+        redisScriptRegistry.executeForLong("unlock", Collections.singletonList(key), token);
+    }
 }
@@ -0,0 +1,32 @@
+package com.hmdp.utils;
+
+import java.util.List;
+
+/*
+ * 缓存值的编解码
+ * 编码结果带有版本化的头部: 魔数(1) | 头部版本(1) | 格式(1) | 逻辑过期时间(8,毫秒时间戳,0表示没有) | 重建耗时(4,毫秒,版本2起)
+ * 不以魔数开头的数据按旧的json格式解析,兼容升级前写入的缓存
+ * */
+public interface CacheCodec {
+
+    byte MAGIC = (byte) 0xCA;
+    byte HEADER_VERSION = 2;
+    int HEADER_LENGTH = 15;
+    int HEADER_V1_LENGTH = 11;
+
+    byte FORMAT_JSON = 1;
+    byte FORMAT_BINARY = 2;
+
+    default byte[] encode(Object value, long expireAt) {
+        return encode(value, expireAt, 0);
+    }
+
+    //rebuildMillis: 本次重建的耗时,用于提前刷新
+    byte[] encode(Object value, long expireAt, int rebuildMillis);
+
+    <T> byte[] encodeList(List<T> values, Class<T> type, long expireAt);
+
+    <R> CacheEntry<R> decode(byte[] data, Class<R> type);
+
+    <T> CacheEntry<List<T>> decodeList(byte[] data, Class<T> type);
+}
@@ -0,0 +1,31 @@
+package com.hmdp.utils;
+
+import lombok.Getter;
+import lombok.ToString;
+
+/*
+ * 解码后的缓存值及其逻辑过期时间
+ * */
+@Getter
+@ToString
+public class CacheEntry<R> {
+    private final R value;
+    //逻辑过期时间,毫秒时间戳,0表示没有设置
+    private final long expireAt;
+    //写入时重建缓存的耗时,毫秒,0表示未记录
+    private final int rebuildMillis;
+
+    public CacheEntry(R value, long expireAt) {
+        this(value, expireAt, 0);
+    }
+
+    public CacheEntry(R value, long expireAt, int rebuildMillis) {
+        this.value = value;
+        this.expireAt = expireAt;
+        this.rebuildMillis = rebuildMillis;
+    }
+
+    public boolean isExpired(long now) {
+        return expireAt > 0 && expireAt <= now;
+    }
+}
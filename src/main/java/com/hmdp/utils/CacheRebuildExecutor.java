@@ -0,0 +1,141 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * 缓存后台重建的共享线程池
+ * 队列有界,队列满时拒绝新任务,调用方继续返回旧值,积压不会无限增长
+ * 同一个key在排队或执行中时不重复提交
+ * 任务异常在这里记录并计数,不会在submit的Future里丢失
+ * */
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+
+    //重建耗时直方图的桶上限,毫秒
+    private static final long[] LATENCY_BUCKETS = {10, 50, 100, 250, 500, 1000, 2500, 5000};
+
+    @Value("${hmdp.cache.rebuild.threads:10}")
+    private int threads;
+
+    @Value("${hmdp.cache.rebuild.queue-capacity:1000}")
+    private int queueCapacity;
+
+    private ThreadPoolExecutor executor;
+
+    //排队或执行中的key
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder totalMillis = new LongAdder();
+    private final AtomicLong maxMillis = new AtomicLong();
+    //最后一个桶记录超过5000ms的
+    private final LongAdder[] latency = new LongAdder[LATENCY_BUCKETS.length + 1];
+
+    @PostConstruct
+    private void init() {
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = new LongAdder();
+        }
+        int size = Math.max(1, threads);
+        executor = new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                new NamedThreadFactory("cache-rebuild-", true),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdownNow();
+    }
+
+    /*
+     * 提交key的重建任务
+     * 返回false表示该key已在重建或队列已满,任务没有执行,调用方应返回旧值
+     * */
+    public boolean submit(String key, Runnable task) {
+        if (!pending.add(key)) {
+            deduplicated.increment();
+            return false;
+        }
+        try {
+            executor.execute(() -> run(key, task));
+            submitted.increment();
+            return true;
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+            rejected.increment();
+            log.warn("缓存重建队列已满,返回旧值:" + key);
+            return false;
+        }
+    }
+
+    private void run(String key, Runnable task) {
+        long start = System.currentTimeMillis();
+        try {
+            task.run();
+            completed.increment();
+        } catch (Exception e) {
+            failures.increment();
+            log.error("缓存重建失败:" + key, e);
+        } finally {
+            pending.remove(key);
+            record(System.currentTimeMillis() - start);
+        }
+    }
+
+    private void record(long millis) {
+        totalMillis.add(millis);
+        maxMillis.accumulateAndGet(millis, Math::max);
+        int i = 0;
+        while (i < LATENCY_BUCKETS.length && millis > LATENCY_BUCKETS[i]) {
+            i++;
+        }
+        latency[i].increment();
+    }
+
+    //线程数、队列深度、提交/去重/拒绝/完成/失败次数、耗时直方图(毫秒)
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("threads", executor.getPoolSize());
+        stats.put("active", executor.getActiveCount());
+        stats.put("queueDepth", executor.getQueue().size());
+        stats.put("queueCapacity", queueCapacity);
+        stats.put("pendingKeys", pending.size());
+        stats.put("submitted", submitted.sum());
+        stats.put("deduplicated", deduplicated.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("completed", completed.sum());
+        stats.put("failures", failures.sum());
+        long runs = completed.sum() + failures.sum();
+        stats.put("avgMillis", runs == 0 ? 0 : totalMillis.sum() / runs);
+        stats.put("maxMillis", maxMillis.get());
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+            histogram.put("le" + LATENCY_BUCKETS[i], latency[i].sum());
+        }
+        histogram.put("inf", latency[LATENCY_BUCKETS.length].sum());
+        stats.put("latency", histogram);
+        return stats;
+    }
+}
@@ -0,0 +1,196 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IShopService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/*
+ * 启动时预热缓存: 热门店铺(按销量、评论数)、全部店铺类型、未结束的秒杀券库存
+ * 店铺从数据库分页读取,每页通过管道写入,过期时间按hmdp.cache.ttl的策略随机加长避免同时过期
+ * 作为ApplicationRunner执行,预热完成或超时之前应用不会进入ACCEPTING_TRAFFIC就绪状态
+ * 其他节点正在预热或刚完成预热时跳过店铺预热;预热期间持有短期锁,全部完成后才写入完成标记
+ * */
+@Slf4j
+@Component
+public class CacheWarmer implements ApplicationRunner {
+
+    @Value("${hmdp.warmup.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.warmup.shop-limit:1000}")
+    private int shopLimit;
+
+    @Value("${hmdp.warmup.page-size:200}")
+    private int pageSize;
+
+    @Value("${hmdp.warmup.timeout-seconds:30}")
+    private long timeoutSeconds;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private ShopTypeSnapshot shopTypeSnapshot;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private SeckillStockClient seckillStockClient;
+
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    private volatile String state = "PENDING";
+    private volatile String phase = "";
+    private final AtomicLong shops = new AtomicLong();
+    private final AtomicLong shopTypes = new AtomicLong();
+    private final AtomicLong vouchers = new AtomicLong();
+    private volatile long startTime;
+    private volatile long costMillis;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            state = "DISABLED";
+            return;
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("cache-warmer-", true));
+        startTime = System.currentTimeMillis();
+        state = "RUNNING";
+        CompletableFuture<Void> future = CompletableFuture.runAsync(this::warmUp, executor);
+        executor.shutdown();
+        try {
+            //等待预热完成,超时后不再阻塞就绪,预热在后台继续
+            future.get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            log.warn("缓存预热超过" + timeoutSeconds + "秒,继续在后台执行,当前进度:" + stats());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("缓存预热失败,当前进度:" + stats(), e);
+        }
+    }
+
+    //预热进度
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("state", state);
+        stats.put("phase", phase);
+        stats.put("shops", shops.get());
+        stats.put("shopTypes", shopTypes.get());
+        stats.put("vouchers", vouchers.get());
+        stats.put("costMillis", "RUNNING".equals(state) ? System.currentTimeMillis() - startTime : costMillis);
+        return stats;
+    }
+
+    private void warmUp() {
+        try {
+            warmShopTypes();
+            warmShops();
+            warmVouchers();
+            state = "DONE";
+        } catch (RuntimeException e) {
+            state = "FAILED";
+            throw e;
+        } finally {
+            costMillis = System.currentTimeMillis() - startTime;
+            log.info("缓存预热结束:" + stats());
+        }
+    }
+
+    //1.店铺类型,缓存不存在时查询数据库并写入,同时构建本地快照
+    private void warmShopTypes() {
+        phase = "shopTypes";
+        shopTypeSnapshot.reload();
+        shopTypes.set(shopTypeSnapshot.list().size());
+    }
+
+    //2.热门店铺,按销量、评论数倒序分页读取
+    private void warmShops() {
+        phase = "shops";
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(CACHE_WARMUP_KEY))) {
+            log.info("其他节点刚完成店铺预热,跳过");
+            return;
+        }
+        //预热期间持有短期锁,节点中途崩溃时锁过期,其他节点可以重新预热
+        String token = UUID.randomUUID().toString(true);
+        Boolean locked = stringRedisTemplate.opsForValue()
+                .setIfAbsent(LOCK_CACHE_WARMUP_KEY, token, LOCK_CACHE_WARMUP_TTL, TimeUnit.SECONDS);
+        if (!Boolean.TRUE.equals(locked)) {
+            log.info("其他节点正在预热店铺,跳过");
+            return;
+        }
+        try {
+            loadShops();
+            //全部完成后才写入完成标记
+            stringRedisTemplate.opsForValue().set(CACHE_WARMUP_KEY, "1", CACHE_WARMUP_TTL, TimeUnit.MINUTES);
+        } finally {
+            redisScriptRegistry.executeForLong("unlock", Collections.singletonList(LOCK_CACHE_WARMUP_KEY), token);
+        }
+    }
+
+    private void loadShops() {
+        for (int current = 1; shops.get() < shopLimit; current++) {
+            List<Shop> records = shopService.query()
+                    .orderByDesc("sold")
+                    .orderByDesc("comments")
+                    .page(new Page<>(current, pageSize, false))
+                    .getRecords();
+            int size = (int) Math.min(records.size(), shopLimit - shops.get());
+            if (size == 0) {
+                break;
+            }
+            cacheClient.setBatch(CACHE_SHOP_KEY, records.subList(0, size), Shop::getId, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            log.info("已预热店铺:" + shops.addAndGet(size) + "/" + shopLimit);
+            if (records.size() < pageSize) {
+                break;
+            }
+        }
+    }
+
+    //3.未结束的秒杀券,redis中缺少库存时按数据库库存补齐,已有的不覆盖
+    private void warmVouchers() {
+        phase = "vouchers";
+        List<SeckillVoucher> active = seckillVoucherService.query()
+                .gt("end_time", LocalDateTime.now())
+                .list();
+        for (SeckillVoucher voucher : active) {
+            if (seckillStockClient.initStockIfAbsent(voucher.getVoucherId(), voucher.getStock())) {
+                log.info("已补齐秒杀券库存:" + voucher.getVoucherId());
+            }
+            vouchers.incrementAndGet();
+        }
+    }
+}
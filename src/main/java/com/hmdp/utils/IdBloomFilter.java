@@ -0,0 +1,395 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/*
+ * 防止缓存穿透的id布隆过滤器,覆盖tb_shop、tb_blog、tb_user
+ * 启动时按id分批扫描全表构建,bitmap保存在redis中供所有节点共享,本地保存一份副本
+ * 只按本地副本判断,判定不存在时直接拒绝,不访问redis
+ * 其他节点新增的id通过bloom:sync广播写入本地副本,重建和切换期间新增的id会补写到新的bitmap
+ * 新增数据时写入本地和redis并广播,定期重建以清除已删除的id
+ * 重建和切换期间新增的id先记录下来,写入新的bitmap后、切换元数据前补写一次,切换后宽限期结束时再补写一次
+ * 过滤器尚未就绪或redis异常时一律放行
+ * */
+@Slf4j
+@Component
+public class IdBloomFilter implements MessageListener {
+
+    public static final String SHOP = "shop";
+    public static final String BLOG = "blog";
+    public static final String USER = "user";
+
+    private static final String ADD = "A:";
+    private static final String RELOAD = "R:";
+
+    @Value("${hmdp.bloom.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.bloom.fpp:0.001}")
+    private double fpp;
+
+    //按当前行数的倍数预留容量,给重建前的新增数据留出空间
+    @Value("${hmdp.bloom.growth:2.0}")
+    private double growth;
+
+    @Value("${hmdp.bloom.scan-batch:1000}")
+    private int scanBatch;
+
+    @Value("${hmdp.bloom.rebuild-interval-minutes:360}")
+    private long rebuildIntervalMinutes;
+
+    //切换bitmap后继续记录新增id的时间,覆盖在途的新增消息和尚未重新加载的节点
+    @Value("${hmdp.bloom.switch-grace-seconds:30}")
+    private long switchGraceSeconds;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private BlogMapper blogMapper;
+
+    @Resource
+    private UserMapper userMapper;
+
+    private final Map<String, Holder> holders = new LinkedHashMap<>();
+
+    //缓存key前缀对应的过滤器
+    private final Map<String, String> prefixes = new HashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    private void init() {
+        holders.put(SHOP, new Holder(SHOP, shopMapper));
+        holders.put(BLOG, new Holder(BLOG, blogMapper));
+        holders.put(USER, new Holder(USER, userMapper));
+        prefixes.put(CACHE_SHOP_KEY, SHOP);
+        prefixes.put(CACHE_BLOG_KEY, BLOG);
+        prefixes.put(CACHE_USER_KEY, USER);
+        if (!enabled) {
+            return;
+        }
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(BLOOM_CHANNEL));
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("bloom-filter-", true));
+        //启动时在后台加载或构建,不阻塞启动
+        scheduler.execute(() -> holders.values().forEach(this::loadOrRebuild));
+        scheduler.scheduleWithFixedDelay(() -> holders.values().forEach(this::rebuild),
+                rebuildIntervalMinutes, rebuildIntervalMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    //按缓存key前缀判断,未配置过滤器的前缀直接放行
+    public boolean mightContain(String keyPrefix, Object id) {
+        String name = prefixes.get(keyPrefix);
+        if (name == null || !(id instanceof Number)) {
+            return true;
+        }
+        return mightContain(name, ((Number) id).longValue());
+    }
+
+    public boolean mightContain(String name, long id) {
+        Holder holder = holders.get(name);
+        if (!enabled || holder == null) {
+            return true;
+        }
+        Snapshot snapshot = holder.current;
+        return snapshot == null || snapshot.filter.mightContain(id);
+    }
+
+    //新增数据后调用
+    public void add(String name, long id) {
+        Holder holder = holders.get(name);
+        if (!enabled || holder == null) {
+            return;
+        }
+        addLocal(holder, id);
+        Snapshot snapshot = holder.current;
+        try {
+            if (snapshot != null) {
+                long[] offsets = snapshot.filter.offsets(id);
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    byte[] key = bytes(snapshot.redisKey);
+                    for (long offset : offsets) {
+                        connection.setBit(key, offset, true);
+                    }
+                    return null;
+                });
+            }
+            stringRedisTemplate.convertAndSend(BLOOM_CHANNEL, ADD + name + ":" + id);
+        } catch (Exception e) {
+            //其他节点本地判定不存在时仍会查询redis,只有redis写入失败会造成误判,下次重建后恢复
+            log.warn("写入布隆过滤器失败:" + name + ":" + id, e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            if (body.startsWith(ADD)) {
+                int split = body.lastIndexOf(':');
+                Holder holder = holders.get(body.substring(ADD.length(), split));
+                if (holder != null) {
+                    addLocal(holder, Long.parseLong(body.substring(split + 1)));
+                }
+            } else if (body.startsWith(RELOAD)) {
+                Holder holder = holders.get(body.substring(RELOAD.length()));
+                if (holder != null) {
+                    //加载期间的新增id在加载后补写到新的bitmap
+                    startRecording(holder);
+                    //加载bitmap较慢,不占用监听线程
+                    scheduler.execute(() -> {
+                        load(holder);
+                        replayRecorded(holder, false);
+                    });
+                    scheduler.schedule(() -> replayRecorded(holder, true), switchGraceSeconds, TimeUnit.SECONDS);
+                }
+            }
+        } catch (Exception e) {
+            log.error("无法解析布隆过滤器消息:" + body, e);
+        }
+    }
+
+    //当前各过滤器的位数、哈希函数个数和数据来源的行数
+    public Map<String, Map<String, Object>> stats() {
+        Map<String, Map<String, Object>> stats = new LinkedHashMap<>();
+        for (Holder holder : holders.values()) {
+            Snapshot snapshot = holder.current;
+            Map<String, Object> s = new LinkedHashMap<>();
+            s.put("ready", snapshot != null);
+            if (snapshot != null) {
+                s.put("key", snapshot.redisKey);
+                s.put("bits", snapshot.filter.getNumBits());
+                s.put("hashes", snapshot.filter.getNumHashes());
+                s.put("rows", snapshot.rows);
+            }
+            stats.put(holder.name, s);
+        }
+        return stats;
+    }
+
+    private void addLocal(Holder holder, long id) {
+        Snapshot snapshot = holder.current;
+        if (snapshot != null) {
+            snapshot.filter.add(id);
+        }
+        //重建过程中的新增同时写入正在构建的过滤器
+        BloomFilter building = holder.building;
+        if (building != null) {
+            building.add(id);
+        }
+        Set<Long> recorded = holder.recorded;
+        if (recorded != null) {
+            recorded.add(id);
+        }
+    }
+
+    //开始记录新增的id,已在记录时沿用
+    private void startRecording(Holder holder) {
+        if (holder.recorded == null) {
+            holder.recorded = ConcurrentHashMap.newKeySet();
+        }
+    }
+
+    //把记录的id补写到当前的bitmap,stop为true时停止记录
+    private void replayRecorded(Holder holder, boolean stop) {
+        Set<Long> recorded = holder.recorded;
+        if (stop) {
+            holder.recorded = null;
+        }
+        Snapshot snapshot = holder.current;
+        if (recorded == null || snapshot == null) {
+            return;
+        }
+        try {
+            setBits(snapshot.redisKey, snapshot.filter, recorded);
+        } catch (Exception e) {
+            log.warn("补写布隆过滤器失败:" + holder.name, e);
+        }
+    }
+
+    private void setBits(String redisKey, BloomFilter filter, Set<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            byte[] key = bytes(redisKey);
+            for (Long id : ids) {
+                for (long offset : filter.offsets(id)) {
+                    connection.setBit(key, offset, true);
+                }
+            }
+            return null;
+        });
+    }
+
+    private void loadOrRebuild(Holder holder) {
+        try {
+            if (!load(holder)) {
+                rebuild(holder);
+            }
+        } catch (Exception e) {
+            log.error("初始化布隆过滤器失败:" + holder.name, e);
+        }
+    }
+
+    //从redis加载其他节点构建好的过滤器
+    private boolean load(Holder holder) {
+        Map<Object, Object> meta = stringRedisTemplate.opsForHash().entries(BLOOM_KEY + holder.name);
+        if (meta.isEmpty()) {
+            return false;
+        }
+        String redisKey = (String) meta.get("key");
+        byte[] bitmap = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(bytes(redisKey)));
+        if (bitmap == null) {
+            return false;
+        }
+        BloomFilter filter = BloomFilter.fromBitmap(
+                Long.parseLong((String) meta.get("bits")), Integer.parseInt((String) meta.get("hashes")), bitmap);
+        holder.current = new Snapshot(redisKey, filter, Long.parseLong((String) meta.get("rows")));
+        log.info("已加载布隆过滤器:" + holder.name + ",key:" + redisKey);
+        return true;
+    }
+
+    //全表扫描id重新构建,同一时间只有一个节点执行
+    private void rebuild(Holder holder) {
+        String lockKey = BLOOM_KEY + holder.name + ":lock";
+        String token = UUID.randomUUID().toString(true);
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(lockKey, token, BLOOM_REBUILD_LOCK_TTL, TimeUnit.MINUTES);
+        if (!Boolean.TRUE.equals(locked)) {
+            return;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            //1.按当前行数确定容量
+            long rows = holder.mapper.selectCount(null);
+            BloomFilter filter = BloomFilter.create((long) Math.max(rows * growth, 1024), fpp);
+            startRecording(holder);
+            holder.building = filter;
+            //2.按id分批扫描,每批从上一批的最大id之后开始
+            long lastId = 0;
+            while (true) {
+                List<Object> ids = scanIds(holder.mapper, lastId);
+                for (Object id : ids) {
+                    filter.add(((Number) id).longValue());
+                }
+                if (ids.size() < scanBatch) {
+                    break;
+                }
+                lastId = ((Number) ids.get(ids.size() - 1)).longValue();
+            }
+            //3.写入新的bitmap,补写构建期间新增的id后切换元数据,旧的bitmap延迟删除
+            String redisKey = BLOOM_KEY + holder.name + ":" + start;
+            byte[] bitmap = filter.toBitmap();
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.set(bytes(redisKey), bitmap));
+            Set<Long> recorded = holder.recorded;
+            if (recorded != null) {
+                setBits(redisKey, filter, recorded);
+            }
+            Snapshot old = holder.current;
+            Map<String, String> meta = new HashMap<>();
+            meta.put("key", redisKey);
+            meta.put("bits", String.valueOf(filter.getNumBits()));
+            meta.put("hashes", String.valueOf(filter.getNumHashes()));
+            meta.put("rows", String.valueOf(rows));
+            stringRedisTemplate.opsForHash().putAll(BLOOM_KEY + holder.name, meta);
+            if (old != null && !old.redisKey.equals(redisKey)) {
+                stringRedisTemplate.expire(old.redisKey, BLOOM_REBUILD_LOCK_TTL, TimeUnit.MINUTES);
+            }
+            holder.current = new Snapshot(redisKey, filter, rows);
+            //4.通知其他节点重新加载,宽限期结束时补写切换前后在途的新增id
+            stringRedisTemplate.convertAndSend(BLOOM_CHANNEL, RELOAD + holder.name);
+            scheduler.schedule(() -> replayRecorded(holder, true), switchGraceSeconds, TimeUnit.SECONDS);
+            log.info("已重建布隆过滤器:" + holder.name + ",行数:" + rows + ",位数:" + filter.getNumBits()
+                    + ",耗时:" + (System.currentTimeMillis() - start) + "ms");
+        } catch (Exception e) {
+            holder.recorded = null;
+            log.error("重建布隆过滤器失败:" + holder.name, e);
+        } finally {
+            holder.building = null;
+            redisScriptRegistry.executeForLong("unlock", Collections.singletonList(lockKey), token);
+        }
+    }
+
+    private <T> List<Object> scanIds(BaseMapper<T> mapper, long lastId) {
+        return mapper.selectObjs(new QueryWrapper<T>()
+                .select("id").gt("id", lastId).orderByAsc("id").last("limit " + scanBatch));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class Holder {
+        private final String name;
+        private final BaseMapper<?> mapper;
+        private volatile Snapshot current;
+        private volatile BloomFilter building;
+        //重建或切换期间新增的id
+        private volatile Set<Long> recorded;
+
+        Holder(String name, BaseMapper<?> mapper) {
+            this.name = name;
+            this.mapper = mapper;
+        }
+    }
+
+    private static class Snapshot {
+        private final String redisKey;
+        private final BloomFilter filter;
+        private final long rows;
+
+        Snapshot(String redisKey, BloomFilter filter, long rows) {
+            this.redisKey = redisKey;
+            this.filter = filter;
+            this.rows = rows;
+        }
+    }
+}
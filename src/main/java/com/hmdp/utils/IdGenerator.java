@@ -0,0 +1,18 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.CompletableFuture;
+
+public interface IdGenerator {
+    /*
+     * @param keyPrefix 业务前缀,如order
+     * @return 全局唯一id
+     * */
+    long nextId(String keyPrefix);
+
+    /*
+     * 异步生成id,默认实现直接在调用线程生成
+     * */
+    default CompletableFuture<Long> nextIdAsync(String keyPrefix) {
+        return CompletableFuture.completedFuture(nextId(keyPrefix));
+    }
+}
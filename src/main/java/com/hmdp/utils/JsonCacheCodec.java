@@ -0,0 +1,131 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSON;
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+
+/*
+ * json格式的缓存编解码,hmdp.cache.codec=json时启用
+ * 也负责解析头部和升级前写入的纯json缓存(包括逻辑过期的RedisData)
+ * */
+@Component
+@ConditionalOnProperty(name = "hmdp.cache.codec", havingValue = "json")
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value, long expireAt, int rebuildMillis) {
+        return withHeader(FORMAT_JSON, expireAt, rebuildMillis, JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public <T> byte[] encodeList(List<T> values, Class<T> type, long expireAt) {
+        return withHeader(FORMAT_JSON, expireAt, 0, JSONUtil.toJsonStr(values).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public <R> CacheEntry<R> decode(byte[] data, Class<R> type) {
+        if (!hasHeader(data)) {
+            return decodeLegacy(data, type);
+        }
+        checkFormat(data, FORMAT_JSON);
+        return new CacheEntry<>(JSONUtil.toBean(payload(data), type), expireAt(data), rebuildMillis(data));
+    }
+
+    @Override
+    public <T> CacheEntry<List<T>> decodeList(byte[] data, Class<T> type) {
+        if (!hasHeader(data)) {
+            return new CacheEntry<>(JSONUtil.toList(new String(data, StandardCharsets.UTF_8), type), 0);
+        }
+        checkFormat(data, FORMAT_JSON);
+        return new CacheEntry<>(JSONUtil.toList(payload(data), type), expireAt(data));
+    }
+
+    protected static byte[] withHeader(byte format, long expireAt, int rebuildMillis, byte[] payload) {
+        byte[] data = new byte[HEADER_LENGTH + payload.length];
+        writeHeader(data, format, expireAt, rebuildMillis);
+        System.arraycopy(payload, 0, data, HEADER_LENGTH, payload.length);
+        return data;
+    }
+
+    protected static void writeHeader(byte[] data, byte format, long expireAt, int rebuildMillis) {
+        data[0] = MAGIC;
+        data[1] = HEADER_VERSION;
+        data[2] = format;
+        for (int i = 0; i < 8; i++) {
+            data[3 + i] = (byte) (expireAt >>> ((7 - i) << 3));
+        }
+        for (int i = 0; i < 4; i++) {
+            data[11 + i] = (byte) (rebuildMillis >>> ((3 - i) << 3));
+        }
+    }
+
+    protected static boolean hasHeader(byte[] data) {
+        return data.length >= HEADER_V1_LENGTH && data[0] == MAGIC;
+    }
+
+    //版本1的头部没有重建耗时
+    protected static int headerLength(byte[] data) {
+        return data[1] == 1 ? HEADER_V1_LENGTH : HEADER_LENGTH;
+    }
+
+    protected static int rebuildMillis(byte[] data) {
+        if (headerLength(data) < HEADER_LENGTH) {
+            return 0;
+        }
+        int rebuildMillis = 0;
+        for (int i = 0; i < 4; i++) {
+            rebuildMillis = rebuildMillis << 8 | (data[11 + i] & 0xFF);
+        }
+        return rebuildMillis;
+    }
+
+    protected static byte format(byte[] data) {
+        if (data[1] > HEADER_VERSION) {
+            throw new IllegalStateException("不支持的缓存头部版本:" + data[1]);
+        }
+        return data[2];
+    }
+
+    protected static long expireAt(byte[] data) {
+        long expireAt = 0;
+        for (int i = 0; i < 8; i++) {
+            expireAt = expireAt << 8 | (data[3 + i] & 0xFF);
+        }
+        return expireAt;
+    }
+
+    private static void checkFormat(byte[] data, byte expected) {
+        byte format = format(data);
+        if (format != expected) {
+            throw new IllegalStateException("缓存格式不匹配:" + format);
+        }
+    }
+
+    private static String payload(byte[] data) {
+        int offset = headerLength(data);
+        return new String(data, offset, data.length - offset, StandardCharsets.UTF_8);
+    }
+
+    //升级前的缓存: 普通json,或逻辑过期时的{"expireTime":..., "data":{...}}
+    private static <R> CacheEntry<R> decodeLegacy(byte[] data, Class<R> type) {
+        JSON json = JSONUtil.parse(new String(data, StandardCharsets.UTF_8));
+        if (json instanceof JSONObject) {
+            JSONObject object = (JSONObject) json;
+            if (object.containsKey("expireTime") && object.get("data") instanceof JSONObject) {
+                LocalDateTime expireTime = JSONUtil.toBean(object, RedisData.class).getExpireTime();
+                long expireAt = expireTime == null ? 0 : expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                return new CacheEntry<>(JSONUtil.toBean(object.getJSONObject("data"), type), expireAt);
+            }
+            return new CacheEntry<>(JSONUtil.toBean(object, type), 0);
+        }
+        throw new IllegalStateException("无法解析的缓存:" + (json instanceof JSONArray ? "array" : String.valueOf(json)));
+    }
+}
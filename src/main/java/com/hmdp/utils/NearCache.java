@@ -0,0 +1,115 @@
+package com.hmdp.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * 进程内近端缓存
+ * 按条目权重(序列化后的字节数)限制总大小,超出时按写入顺序淘汰,每个条目有独立的过期时间
+ * 缓存的是序列化后的字节,命中后由调用方解码,每次得到独立的对象
+ * */
+public class NearCache {
+
+    //缓存空值的占位对象
+    public static final Object NULL = new Object();
+
+    private final long maxWeight;
+    private final ConcurrentHashMap<String, Entry> map = new ConcurrentHashMap<>();
+    private final Queue<Entry> writeOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicLong weight = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+
+    public NearCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    /*
+     * @return 缓存的对象,NULL表示缓存的空值,null表示未命中
+     * */
+    public Object get(String key) {
+        Entry entry = map.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expireAt <= System.currentTimeMillis()) {
+            remove(key, entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+    public void put(String key, Object value, int weight, long ttlMillis) {
+        Entry entry = new Entry(key, value == null ? NULL : value, Math.max(weight, 1), System.currentTimeMillis() + ttlMillis);
+        Entry old = map.put(key, entry);
+        if (old != null) {
+            this.weight.addAndGet(-old.weight);
+        }
+        this.weight.addAndGet(entry.weight);
+        writeOrder.offer(entry);
+        queued.incrementAndGet();
+        evict();
+    }
+
+    public void invalidate(String key) {
+        Entry old = map.remove(key);
+        if (old != null) {
+            weight.addAndGet(-old.weight);
+        }
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public long weight() {
+        return weight.get();
+    }
+
+    //超出容量时淘汰最早写入的条目;写入队列中已被覆盖或删除的条目过多时顺带清理
+    private void evict() {
+        while (true) {
+            boolean overWeight = weight.get() > maxWeight;
+            boolean overQueue = queued.get() > (map.size() << 1) + 64;
+            if (!overWeight && !overQueue) {
+                return;
+            }
+            Entry eldest = writeOrder.poll();
+            if (eldest == null) {
+                return;
+            }
+            queued.decrementAndGet();
+            if (map.get(eldest.key) != eldest) {
+                continue;
+            }
+            if (overWeight) {
+                remove(eldest.key, eldest);
+            } else {
+                //仍然有效的条目放回队尾
+                writeOrder.offer(eldest);
+                queued.incrementAndGet();
+            }
+        }
+    }
+
+    private void remove(String key, Entry entry) {
+        if (map.remove(key, entry)) {
+            weight.addAndGet(-entry.weight);
+        }
+    }
+
+    private static class Entry {
+        private final String key;
+        private final Object value;
+        private final int weight;
+        private final long expireAt;
+
+        Entry(String key, Object value, int weight, long expireAt) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.expireAt = expireAt;
+        }
+    }
+}
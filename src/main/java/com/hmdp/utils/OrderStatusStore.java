@@ -0,0 +1,99 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import com.hmdp.dto.OrderStatus;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_TTL;
+
+/*
+ * 秒杀订单状态索引
+ * 订单id按128个一组分桶存入hash: order:status:<id>>>7> field=<id&127> value=状态码+用户id
+ * 小hash使用ziplist编码,每个订单只占十几个字节
+ * 只有下单用户能查询订单状态,其他用户查询时与订单不存在一样返回PENDING
+ * 终态不会再变化,查询时先走本地LRU
+ * */
+@Component
+public class OrderStatusStore {
+
+    private static final int BUCKET_BITS = 7;
+    private static final long BUCKET_MASK = (1L << BUCKET_BITS) - 1;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.order-status.local-cache-size:100000}")
+    private int localCacheSize;
+
+    //订单id -> 状态码+用户id
+    private LRUCache<Long, String> localCache;
+
+    @PostConstruct
+    private void init() {
+        localCache = CacheUtil.newLRUCache(localCacheSize);
+    }
+
+    //批量写入终态,一次pipeline;owners为订单id对应的下单用户
+    public void save(Map<Long, OrderStatus> statuses, Map<Long, Long> owners) {
+        if (statuses.isEmpty()) {
+            return;
+        }
+        long ttl = TimeUnit.HOURS.toSeconds(ORDER_STATUS_TTL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<Long, OrderStatus> entry : statuses.entrySet()) {
+                byte[] key = bytes(bucketKey(entry.getKey()));
+                Long owner = owners.get(entry.getKey());
+                String value = entry.getValue().getCode() + (owner == null ? "" : owner.toString());
+                connection.hSet(key, bytes(field(entry.getKey())), bytes(value));
+                connection.expire(key, ttl);
+            }
+            return null;
+        });
+    }
+
+    //userId不是下单用户时返回PENDING,不暴露其他用户的订单状态
+    public OrderStatus get(Long orderId, Long userId) {
+        //1.本地LRU
+        String value = localCache.get(orderId);
+        if (value == null) {
+            //2.redis
+            Object stored = stringRedisTemplate.opsForHash().get(bucketKey(orderId), field(orderId));
+            if (stored == null) {
+                return OrderStatus.PENDING;
+            }
+            value = stored.toString();
+            //3.只缓存终态
+            if (OrderStatus.of(value.substring(0, 1)).isTerminal()) {
+                localCache.put(orderId, value);
+            }
+        }
+        //4.校验下单用户
+        if (!value.substring(1).equals(userId.toString())) {
+            return OrderStatus.PENDING;
+        }
+        return OrderStatus.of(value.substring(0, 1));
+    }
+
+    private static String bucketKey(Long orderId) {
+        return ORDER_STATUS_KEY + (orderId >>> BUCKET_BITS);
+    }
+
+    private static String field(Long orderId) {
+        return String.valueOf(orderId & BUCKET_MASK);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -12,13 +12,47 @@ public class RedisConstants {
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
     public static final String CACHE_SHOP_TYPE_KEY="cache:shop:type";
+    public static final String SHOP_TYPE_VERSION_KEY = "cache:shop:type:version";
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_WARMUP_KEY = "cache:warmup";
+    public static final Long CACHE_WARMUP_TTL = 5L;
+    public static final String LOCK_CACHE_WARMUP_KEY = "lock:cache:warmup";
+    public static final Long LOCK_CACHE_WARMUP_TTL = 60L;
+
+    public static final String BLOOM_KEY = "bloom:";
+    public static final String BLOOM_CHANNEL = "bloom:sync";
+    public static final Long BLOOM_REBUILD_LOCK_TTL = 10L;
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_RESERVE_KEY = "seckill:reserve:";
+    public static final String SECKILL_ORDER_STREAM = "streams.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DLQ = "streams.orders.dlq";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final Long ORDER_STATUS_TTL = 24L;
+
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final String ID_WORKER_SEQ_KEY = "id:worker:seq";
+    public static final Long ID_WORKER_TTL = 60L;
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String SHOP_GEO_PAGE_KEY = "shop:geo:page:";
+    public static final Long SHOP_GEO_PAGE_TTL = 5L;
+    public static final String SHOP_GEO_SYNC_CHANNEL = "shop:geo:sync";
+    public static final String SHOP_NAME_SYNC_CHANNEL = "shop:name:sync";
+    public static final String SHOP_GEO_LOADED_KEY = "shop:geo:loaded";
+    public static final String LOCK_SHOP_GEO_KEY = "lock:shop:geo";
+    public static final Long LOCK_SHOP_GEO_TTL = 10L;
     public static final String USER_SIGN_KEY = "sign:";
 }
@@ -1,16 +1,31 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.NamedThreadFactory;
+import io.lettuce.core.api.StatefulRedisConnection;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
-import java.text.DateFormat;
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+@Slf4j
 @Component
-public class RedisIdWorker {
+public class RedisIdWorker implements IdGenerator {
     /*
      * 开始时间戳
      * */
@@ -18,22 +33,192 @@ public class RedisIdWorker {
     public static final long BEGIN_TIMESTAMP = 1675467480L;
 
     public static final long COUNT_BITS=32;
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
     @Resource
     private  StringRedisTemplate stringRedisTemplate;
 
+    //异步连接懒加载,只有异步接口才会获取;按类型注入ObjectProvider,不按名称取bean
+    @Autowired
+    private ObjectProvider<StatefulRedisConnection<String, String>> asyncRedisConnection;
+
+    //号段模式:每次INCRBY租用一段序列号,在本地AtomicLong中发放
+    @Value("${hmdp.id.segment.enabled:false}")
+    private boolean segmentEnabled;
+
+    //每个号段的长度
+    @Value("${hmdp.id.segment.step:1000}")
+    private long segmentStep;
+
+    //号段剩余比例低于该值时异步预取下一个号段
+    @Value("${hmdp.id.segment.prefetch-ratio:0.2}")
+    private double prefetchRatio;
+
+    private final ExecutorService segmentLoader = Executors.newSingleThreadExecutor(new NamedThreadFactory("id-segment-", true));
+
+    private final ConcurrentHashMap<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    //当天日期缓存,跨天时才重新格式化
+    private volatile DateKey dateKey = DateKey.of(LocalDate.now());
+
+    @Override
     public  long nextId(String keyPrefix) {
-        //1.生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
-        long timestamp = nowSecond - BEGIN_TIMESTAMP;
+        return segmentEnabled ? nextIdBySegment(keyPrefix) : nextIdByIncr(keyPrefix);
+    }
+
+    //号段模式下通常无需访问redis,直接返回;INCR模式通过lettuce异步命令发送
+    @Override
+    public CompletableFuture<Long> nextIdAsync(String keyPrefix) {
+        if (segmentEnabled) {
+            return CompletableFuture.completedFuture(nextIdBySegment(keyPrefix));
+        }
+        DateKey day = currentDateKey();
+        long timestamp = day.toSecond(System.currentTimeMillis()) - BEGIN_TIMESTAMP;
+        return asyncRedisConnection.getObject().async().incr("icr:" + keyPrefix + ":" + day.date)
+                .toCompletableFuture()
+                .thenApply(increment -> timestamp<<COUNT_BITS | increment);
+    }
+
+    //每个id一次INCR
+    public long nextIdByIncr(String keyPrefix) {
+        //1.生成时间戳,当天日期
+        DateKey day = currentDateKey();
+        long timestamp = day.toSecond(System.currentTimeMillis()) - BEGIN_TIMESTAMP;
         //2.生成序列号
-        //3.生成当天日期
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        //4.拼接key
-        Long increment = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
-        //5.返回
+        Long increment = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + day.date);
+        //3.返回
         return timestamp<<COUNT_BITS | increment;
     }
 
+    //从本地号段中取序列号,号段用完前异步预取下一段
+    public long nextIdBySegment(String keyPrefix) {
+        //1.生成时间戳,当天日期
+        DateKey day = currentDateKey();
+        long timestamp = day.toSecond(System.currentTimeMillis()) - BEGIN_TIMESTAMP;
+        //2.获取当天的号段缓冲,跨天时替换
+        SegmentBuffer buffer = buffers.get(keyPrefix);
+        if (buffer == null || !buffer.date.equals(day.date)) {
+            buffer = buffers.compute(keyPrefix, (k, old) ->
+                    old != null && old.date.equals(day.date) ? old : new SegmentBuffer("icr:" + keyPrefix + ":" + day.date, day.date));
+        }
+        //3.返回
+        return timestamp<<COUNT_BITS | buffer.next();
+    }
+
+    @PreDestroy
+    private void destroy() {
+        segmentLoader.shutdownNow();
+    }
 
+    private DateKey currentDateKey() {
+        DateKey day = dateKey;
+        long now = System.currentTimeMillis();
+        if (now >= day.endMillis) {
+            day = DateKey.of(LocalDate.now());
+            dateKey = day;
+        }
+        return day;
+    }
+
+    //INCRBY租用一个号段[max-step+1, max]
+    private Segment loadSegment(String key) {
+        Long max = stringRedisTemplate.opsForValue().increment(key, segmentStep);
+        if (max == null) {
+            throw new IllegalStateException("号段分配失败:" + key);
+        }
+        return new Segment(max - segmentStep + 1, max);
+    }
+
+    private static class DateKey {
+        private final String date;
+        private final long endMillis;
+        //本地时区相对UTC的偏移,保持与LocalDateTime.now().toEpochSecond(UTC)一致
+        private final long offsetSeconds;
+
+        private DateKey(String date, long endMillis, long offsetSeconds) {
+            this.date = date;
+            this.endMillis = endMillis;
+            this.offsetSeconds = offsetSeconds;
+        }
+
+        static DateKey of(LocalDate today) {
+            ZonedDateTime start = today.atStartOfDay(ZoneId.systemDefault());
+            long end = today.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            return new DateKey(today.format(DATE_FORMATTER), end, start.getOffset().getTotalSeconds());
+        }
+
+        long toSecond(long millis) {
+            return millis / 1000 + offsetSeconds;
+        }
+    }
+
+    private static class Segment {
+        private final AtomicLong cursor;
+        private final long max;
+
+        Segment(long min, long max) {
+            this.cursor = new AtomicLong(min);
+            this.max = max;
+        }
+    }
+
+    private class SegmentBuffer {
+        private final String key;
+        private final String date;
+        private volatile Segment current;
+        private final AtomicReference<Segment> next = new AtomicReference<>();
+        private final AtomicBoolean loading = new AtomicBoolean(false);
+
+        SegmentBuffer(String key, String date) {
+            this.key = key;
+            this.date = date;
+        }
+
+        long next() {
+            while (true) {
+                Segment segment = current;
+                if (segment != null) {
+                    long value = segment.cursor.getAndIncrement();
+                    if (value <= segment.max) {
+                        //剩余不足一定比例时预取下一个号段
+                        if (segment.max - value < segmentStep * prefetchRatio) {
+                            prefetch();
+                        }
+                        return value;
+                    }
+                }
+                switchSegment(segment);
+            }
+        }
+
+        private void prefetch() {
+            if (next.get() != null || !loading.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                segmentLoader.execute(() -> {
+                    try {
+                        next.set(loadSegment(key));
+                    } catch (Exception e) {
+                        log.error("预取号段失败:" + key, e);
+                    } finally {
+                        loading.set(false);
+                    }
+                });
+            } catch (Exception e) {
+                loading.set(false);
+                log.error("提交号段预取任务失败:" + key, e);
+            }
+        }
+
+        //当前号段用完,切换到预取的号段,预取未完成时同步加载
+        private synchronized void switchSegment(Segment exhausted) {
+            if (current != exhausted) {
+                return;
+            }
+            Segment segment = next.getAndSet(null);
+            current = segment != null ? segment : loadSegment(key);
+        }
+    }
 }
@@ -0,0 +1,226 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.io.IoUtil;
+import cn.hutool.core.io.file.FileNameUtil;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/*
+ * lua脚本注册表
+ * 启动时SCRIPT LOAD classpath:lua/*.lua,之后统一通过EVALSHA调用
+ * 遇到NOSCRIPT(redis重启/故障切换/SCRIPT FLUSH)时重新加载并重试一次
+ * 脚本名为文件名去掉.lua,如seckill、unlock
+ * */
+@Slf4j
+@Component
+public class RedisScriptRegistry {
+
+    public static final String SCRIPT_LOCATION = "classpath*:lua/*.lua";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    //异步连接懒加载,只有异步调用时才获取
+    private final ObjectProvider<StatefulRedisConnection<String, String>> asyncRedisConnection;
+
+    private final Map<String, Script> scripts = new ConcurrentHashMap<>();
+
+    public RedisScriptRegistry(StringRedisTemplate stringRedisTemplate, ObjectProvider<StatefulRedisConnection<String, String>> asyncRedisConnection) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.asyncRedisConnection = asyncRedisConnection;
+    }
+
+    @PostConstruct
+    private void init() throws IOException {
+        Resource[] resources = new PathMatchingResourcePatternResolver().getResources(SCRIPT_LOCATION);
+        for (Resource resource : resources) {
+            String name = FileNameUtil.mainName(resource.getFilename());
+            try (InputStream in = resource.getInputStream()) {
+                scripts.put(name, new Script(name, IoUtil.read(in, StandardCharsets.UTF_8)));
+            }
+        }
+        for (Script script : scripts.values()) {
+            try {
+                load(script);
+            } catch (Exception e) {
+                //redis暂时不可用时不阻止启动,首次调用时再加载
+                log.warn("预加载lua脚本失败:" + script.name, e);
+            }
+        }
+        log.info("已注册lua脚本:" + scripts.keySet());
+    }
+
+    public Long executeForLong(String name, List<String> keys, String... args) {
+        return execute(name, ReturnType.INTEGER, keys, args);
+    }
+
+    public <T> T execute(String name, ReturnType returnType, List<String> keys, String... args) {
+        Script script = require(name);
+        byte[][] keysAndArgs = new byte[keys.size() + args.length][];
+        int i = 0;
+        for (String key : keys) {
+            keysAndArgs[i++] = key.getBytes(StandardCharsets.UTF_8);
+        }
+        for (String arg : args) {
+            keysAndArgs[i++] = arg.getBytes(StandardCharsets.UTF_8);
+        }
+        long start = System.nanoTime();
+        try {
+            if (script.sha == null) {
+                load(script);
+            }
+            try {
+                return evalSha(script, returnType, keys.size(), keysAndArgs);
+            } catch (Exception e) {
+                if (!isNoScript(e)) {
+                    throw e;
+                }
+                //脚本缓存丢失,重新加载后重试
+                script.reloads.increment();
+                load(script);
+                return evalSha(script, returnType, keys.size(), keysAndArgs);
+            }
+        } catch (RuntimeException e) {
+            script.errors.increment();
+            throw e;
+        } finally {
+            script.record(System.nanoTime() - start);
+        }
+    }
+
+    //异步EVALSHA,不占用调用线程,回调在lettuce的IO线程上执行
+    public CompletableFuture<Long> executeForLongAsync(String name, List<String> keys, String... args) {
+        Script script = require(name);
+        String[] keyArray = keys.toArray(new String[0]);
+        RedisAsyncCommands<String, String> commands = asyncRedisConnection.getObject().async();
+        long start = System.nanoTime();
+        CompletableFuture<String> sha = script.sha != null
+                ? CompletableFuture.completedFuture(script.sha)
+                : loadAsync(script, commands);
+        CompletableFuture<Long> result = sha
+                .thenCompose(s -> evalShaAsync(commands, s, keyArray, args))
+                .handle((r, e) -> {
+                    if (e == null) {
+                        return CompletableFuture.completedFuture(r);
+                    }
+                    if (!isNoScript(e)) {
+                        return RedisScriptRegistry.<Long>failed(e);
+                    }
+                    //脚本缓存丢失,重新加载后重试
+                    script.reloads.increment();
+                    return loadAsync(script, commands).thenCompose(s -> evalShaAsync(commands, s, keyArray, args));
+                })
+                .thenCompose(Function.identity());
+        return result.whenComplete((r, e) -> {
+            if (e != null) {
+                script.errors.increment();
+            }
+            script.record(System.nanoTime() - start);
+        });
+    }
+
+    //每个脚本的调用次数、错误次数、重新加载次数、平均/最大耗时(微秒)
+    public Map<String, Map<String, Object>> stats() {
+        Map<String, Map<String, Object>> stats = new LinkedHashMap<>();
+        for (Script script : scripts.values()) {
+            long calls = script.calls.sum();
+            Map<String, Object> s = new LinkedHashMap<>();
+            s.put("sha", script.sha);
+            s.put("calls", calls);
+            s.put("errors", script.errors.sum());
+            s.put("reloads", script.reloads.sum());
+            s.put("avgMicros", calls == 0 ? 0 : script.totalNanos.sum() / calls / 1000);
+            s.put("maxMicros", script.maxNanos.get() / 1000);
+            stats.put(script.name, s);
+        }
+        return stats;
+    }
+
+    private <T> T evalSha(Script script, ReturnType returnType, int numKeys, byte[][] keysAndArgs) {
+        String sha = script.sha;
+        return stringRedisTemplate.execute((RedisCallback<T>) connection ->
+                connection.scriptingCommands().evalSha(sha, returnType, numKeys, keysAndArgs));
+    }
+
+    private CompletableFuture<Long> evalShaAsync(RedisAsyncCommands<String, String> commands, String sha, String[] keys, String[] args) {
+        return commands.<Long>evalsha(sha, ScriptOutputType.INTEGER, keys, args).toCompletableFuture();
+    }
+
+    private CompletableFuture<String> loadAsync(Script script, RedisAsyncCommands<String, String> commands) {
+        return commands.scriptLoad(script.body).toCompletableFuture().thenApply(sha -> {
+            script.sha = sha;
+            return sha;
+        });
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    private Script require(String name) {
+        Script script = scripts.get(name);
+        if (script == null) {
+            throw new IllegalArgumentException("lua脚本不存在:" + name);
+        }
+        return script;
+    }
+
+    private void load(Script script) {
+        script.sha = stringRedisTemplate.execute((RedisCallback<String>) connection ->
+                connection.scriptingCommands().scriptLoad(script.body.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static boolean isNoScript(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Script {
+        private final String name;
+        private final String body;
+        private volatile String sha;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder reloads = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        Script(String name, String body) {
+            this.name = name;
+            this.body = body;
+        }
+
+        void record(long nanos) {
+            calls.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+    }
+}
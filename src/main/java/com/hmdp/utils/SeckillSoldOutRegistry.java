@@ -0,0 +1,87 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/*
+ * 本地售罄标记,售罄后的秒杀请求在本节点直接拒绝,不再执行lua脚本
+ * 通过redis发布订阅同步到其他节点
+ * 标记存入有容量上限的LRU并在ttl后过期,过期后的首个请求重新执行lua,仍售罄时再次标记
+ * */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry implements MessageListener {
+
+    private static final String SOLD_OUT = "S:";
+
+    //最多保存的售罄标记数量
+    @Value("${hmdp.seckill.sold-out.capacity:10000}")
+    private int capacity;
+
+    //售罄标记的有效期
+    @Value("${hmdp.seckill.sold-out.ttl-seconds:600}")
+    private long ttlSeconds;
+
+    private LRUCache<Long, Boolean> soldOut;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @PostConstruct
+    private void init() {
+        soldOut = CacheUtil.newLRUCache(capacity, TimeUnit.SECONDS.toMillis(ttlSeconds));
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        //不刷新访问时间,标记在写入ttl后一定过期
+        return soldOut.get(voucherId, false) != null;
+    }
+
+    //标记售罄,只有本节点首次标记时才广播
+    public void markSoldOut(Long voucherId) {
+        if (!isSoldOut(voucherId)) {
+            soldOut.put(voucherId, Boolean.TRUE);
+            publish(SOLD_OUT + voucherId);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            if (body.startsWith(SOLD_OUT)) {
+                soldOut.put(Long.valueOf(body.substring(2)), Boolean.TRUE);
+            }
+        } catch (Exception e) {
+            log.error("无法解析售罄消息:" + body, e);
+        }
+    }
+
+    private void publish(String message) {
+        try {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, message);
+        } catch (Exception e) {
+            //广播失败不影响本节点,其他节点执行lua后会自行标记
+            log.warn("广播售罄消息失败:" + message, e);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/*
+ * 秒杀库存分片
+ * 库存拆分到K个key: seckill:stock:{seckill:t}:voucherId:i,一人一单集合: seckill:order:{seckill:t}:voucherId:i
+ * 订单消息写入同一hash tag的stream: streams.orders:{seckill:t},lua脚本访问的key都在KEYS中且位于同一集群槽位
+ * t = (voucherId + i) % stream-shards,同一张券的各分片落在不同的槽位,所有券共用stream-shards个stream
+ * 用户按userId固定归属一个分片,所属分片库存不足时依次尝试其他分片
+ * 尝试期间在所属分片写入带有效期的占位key,其他分片成功时通过脚本原子地转为购买记录,全部失败时删除
+ * */
+@Slf4j
+@Component
+public class SeckillStockClient {
+
+    public static final String SECKILL_SCRIPT = "seckill";
+    public static final String SECKILL_SHARD_SCRIPT = "seckill_shard";
+    public static final String SECKILL_CONFIRM_SCRIPT = "seckill_confirm";
+
+    //迁移分片前的一人一单集合时每批复制的用户数
+    private static final int MIGRATE_BATCH = 1000;
+
+    //新增秒杀券时的分片数量
+    @Value("${hmdp.seckill.stock-shards:4}")
+    private int defaultShards;
+
+    //尝试其他分片期间占位的有效期
+    @Value("${hmdp.seckill.reserve-ttl-ms:10000}")
+    private long reserveTtlMillis;
+
+    //hash tag(槽位组)数量,每组一个订单stream;各节点必须一致,且只能增加不能减少
+    @Value("${hmdp.seckill.stream-shards:4}")
+    private int streamShards;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    //每张券的分片数量在创建后不再变化,本地缓存
+    private final ConcurrentHashMap<Long, Integer> shardCounts = new ConcurrentHashMap<>();
+
+    //把库存平均拆分到各分片,余数分给前几个分片
+    public void initStock(Long voucherId, int stock) {
+        int shards = Math.max(1, Math.min(defaultShards, Math.max(stock, 1)));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < shards; i++) {
+                int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+                connection.set(bytes(stockKey(voucherId, i)), bytes(String.valueOf(shardStock)));
+            }
+            connection.set(bytes(SECKILL_SHARDS_KEY + voucherId), bytes(String.valueOf(shards)));
+            return null;
+        });
+        shardCounts.put(voucherId, shards);
+    }
+
+    //redis中没有该券的库存时按数据库库存初始化,已存在时不覆盖;有分片前的库存时迁移,不按数据库覆盖
+    public boolean initStockIfAbsent(Long voucherId, int stock) {
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_SHARDS_KEY + voucherId))) {
+            return false;
+        }
+        if (migrateLegacy(voucherId)) {
+            return true;
+        }
+        initStock(voucherId, stock);
+        return true;
+    }
+
+    /*
+     * 迁移分片前的库存seckill:stock:<id>和一人一单集合seckill:order:<id>到分片0,分片数为1
+     * 先复制购买过的用户,再SETNX库存,最后SETNX分片数;多个节点同时迁移时结果相同,不会覆盖已扣减的库存
+     * 旧key保留不删除,迁移可以重复执行
+     * @return false:没有分片前的库存
+     * */
+    public boolean migrateLegacy(Long voucherId) {
+        String stock = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId);
+        if (stock == null) {
+            return false;
+        }
+        String legacyOrderKey = SECKILL_ORDER_KEY + voucherId;
+        String orderKey = orderKey(voucherId, 0);
+        List<String> users = new ArrayList<>(MIGRATE_BATCH);
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(legacyOrderKey,
+                ScanOptions.scanOptions().count(MIGRATE_BATCH).build())) {
+            while (cursor.hasNext()) {
+                users.add(cursor.next());
+                if (users.size() >= MIGRATE_BATCH) {
+                    stringRedisTemplate.opsForSet().add(orderKey, users.toArray(new String[0]));
+                    users.clear();
+                }
+            }
+        }
+        if (!users.isEmpty()) {
+            stringRedisTemplate.opsForSet().add(orderKey, users.toArray(new String[0]));
+        }
+        stringRedisTemplate.opsForValue().setIfAbsent(stockKey(voucherId, 0), stock);
+        stringRedisTemplate.opsForValue().setIfAbsent(SECKILL_SHARDS_KEY + voucherId, "1");
+        log.info("已迁移分片前的秒杀库存:" + voucherId + ",库存:" + stock);
+        return true;
+    }
+
+    /*
+     * 扣减库存并发送订单消息
+     * @return 0:成功 1:库存不足 2:重复下单
+     * */
+    public int deduct(Long voucherId, Long userId, long orderId) {
+        int shards = shardCount(voucherId);
+        int home = (int) Math.floorMod(userId, (long) shards);
+        String voucher = voucherId.toString();
+        String user = userId.toString();
+        String order = String.valueOf(orderId);
+        //1.在用户所属分片扣减
+        Long result = redisScriptRegistry.executeForLong(SECKILL_SCRIPT, homeKeys(voucherId, home, userId),
+                voucher, user, order, String.valueOf(shards), String.valueOf(reserveTtlMillis)
+        );
+        int r = result == null ? 1 : result.intValue();
+        if (r != 3) {
+            return r;
+        }
+        //2.所属分片库存不足,依次尝试其他分片
+        for (int i = 1; i < shards; i++) {
+            int shard = (home + i) % shards;
+            Long sibling = redisScriptRegistry.executeForLong(SECKILL_SHARD_SCRIPT,
+                    Arrays.asList(stockKey(voucherId, shard), streamKey(voucherId, shard)),
+                    voucher, user, order
+            );
+            if (sibling != null && sibling == 0) {
+                //2.1.占位转为购买记录
+                redisScriptRegistry.executeForLong(SECKILL_CONFIRM_SCRIPT,
+                        Arrays.asList(orderKey(voucherId, home), reserveKey(voucherId, home, userId)), user, order);
+                return 0;
+            }
+        }
+        //3.所有分片都没有库存,释放占位(只删除本次请求的占位)
+        redisScriptRegistry.executeForLong("unlock", Collections.singletonList(reserveKey(voucherId, home, userId)), order);
+        return 1;
+    }
+
+    //deduct的异步版本,各分片依次尝试,不阻塞调用线程
+    public CompletableFuture<Integer> deductAsync(Long voucherId, Long userId, long orderId) {
+        int shards = shardCount(voucherId);
+        int home = (int) Math.floorMod(userId, (long) shards);
+        String[] args = {voucherId.toString(), userId.toString(), String.valueOf(orderId)};
+        //1.在用户所属分片扣减
+        return redisScriptRegistry.executeForLongAsync(SECKILL_SCRIPT, homeKeys(voucherId, home, userId),
+                args[0], args[1], args[2], String.valueOf(shards), String.valueOf(reserveTtlMillis)
+        ).thenCompose(result -> {
+            int r = result == null ? 1 : result.intValue();
+            if (r != 3) {
+                return CompletableFuture.completedFuture(r);
+            }
+            //2.所属分片库存不足,依次尝试其他分片
+            return deductSiblingAsync(voucherId, userId, home, 1, shards, args);
+        });
+    }
+
+    private CompletableFuture<Integer> deductSiblingAsync(Long voucherId, Long userId, int home, int i, int shards, String[] args) {
+        String reserveKey = reserveKey(voucherId, home, userId);
+        if (i >= shards) {
+            //3.所有分片都没有库存,释放占位(只删除本次请求的占位)
+            return redisScriptRegistry.executeForLongAsync("unlock", Collections.singletonList(reserveKey), args[2])
+                    .thenApply(removed -> 1);
+        }
+        int shard = (home + i) % shards;
+        List<String> keys = Arrays.asList(stockKey(voucherId, shard), streamKey(voucherId, shard));
+        return redisScriptRegistry.executeForLongAsync(SECKILL_SHARD_SCRIPT, keys, args)
+                .thenCompose(sibling -> sibling != null && sibling == 0
+                        //2.1.占位转为购买记录
+                        ? redisScriptRegistry.executeForLongAsync(SECKILL_CONFIRM_SCRIPT,
+                                Arrays.asList(orderKey(voucherId, home), reserveKey), args[1], args[2])
+                                .thenApply(confirmed -> 0)
+                        : deductSiblingAsync(voucherId, userId, home, i + 1, shards, args));
+    }
+
+    //用户所属分片的脚本key: 库存、购买记录、订单stream、占位
+    private List<String> homeKeys(Long voucherId, int home, Long userId) {
+        return Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home), streamKey(voucherId, home),
+                reserveKey(voucherId, home, userId));
+    }
+
+    public int shardCount(Long voucherId) {
+        Integer shards = shardCounts.get(voucherId);
+        if (shards != null) {
+            return shards;
+        }
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+        if (value == null) {
+            //分片前创建的券先迁移;券不存在或尚未初始化时不缓存
+            if (!migrateLegacy(voucherId)) {
+                return 1;
+            }
+            value = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+        }
+        shards = Integer.parseInt(value);
+        shardCounts.put(voucherId, shards);
+        return shards;
+    }
+
+    //所有订单stream,供消费者读取
+    public List<String> streamKeys() {
+        List<String> keys = new ArrayList<>(streamShards);
+        for (int t = 0; t < Math.max(1, streamShards); t++) {
+            keys.add(SECKILL_ORDER_STREAM + ":" + tag(t));
+        }
+        return keys;
+    }
+
+    public String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + tag(voucherId, shard) + ":" + voucherId + ":" + shard;
+    }
+
+    public String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + tag(voucherId, shard) + ":" + voucherId + ":" + shard;
+    }
+
+    public String reserveKey(Long voucherId, int shard, Long userId) {
+        return SECKILL_RESERVE_KEY + tag(voucherId, shard) + ":" + voucherId + ":" + shard + ":" + userId;
+    }
+
+    public String streamKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_STREAM + ":" + tag(voucherId, shard);
+    }
+
+    private String tag(Long voucherId, int shard) {
+        return tag((int) Math.floorMod(voucherId + shard, (long) Math.max(1, streamShards)));
+    }
+
+    private static String tag(int t) {
+        return "{seckill:" + t + "}";
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,575 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.ShopGeoQuery;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_SYNC_CHANNEL;
+
+/*
+ * 进程内的店铺空间索引,每个typeId一个网格
+ * 网格按经纬度划分成cell-degrees大小的格子,店铺坐标按格子排序后存放在double数组中,半径查询只计算覆盖到的格子
+ * 每个类型的网格不可修改,店铺变化时重建该类型的网格后整体替换,查询不加锁
+ * 启动时在后台按id分批扫描tb_shop构建,店铺新增/修改后通过shop:geo:sync频道通知所有节点重新读取该店铺
+ * 定期全量重建兜底;构建完成前isReady()为false,调用方使用redis GEO
+ * 同时保存均价、评分、销量、营业时间,组合查询时在计算距离前过滤,多个类型的结果按排序值做k路归并
+ * */
+@Slf4j
+@Component
+public class ShopGeoIndex implements MessageListener {
+
+    private static final double EARTH_RADIUS = 6371008.8;
+
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180;
+
+    //格子key = 行 * COLUMNS + 列
+    private static final long COLUMNS = 1_000_000L;
+
+    private static final String[] SELECT_COLUMNS = {"id", "type_id", "x", "y", "avg_price", "score", "sold", "open_hours"};
+
+    //排序值小的在前,相同时按距离、id
+    private static final Comparator<Hit> RANK = Comparator.comparingDouble(Hit::getRank)
+            .thenComparingDouble(Hit::getDistance)
+            .thenComparingLong(Hit::getId);
+
+    @Value("${hmdp.geo.index.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.geo.index.cell-degrees:0.01}")
+    private double cellDegrees;
+
+    @Value("${hmdp.geo.index.scan-batch:1000}")
+    private int scanBatch;
+
+    @Value("${hmdp.geo.index.rebuild-interval-minutes:60}")
+    private long rebuildIntervalMinutes;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //店铺坐标,每次变化后重建对应类型的网格
+    private final Map<Long, Point> points = new HashMap<>();
+
+    private final Map<Long, Grid> grids = new ConcurrentHashMap<>();
+
+    private volatile boolean ready;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        //格子太小时列数超过COLUMNS
+        cellDegrees = Math.max(cellDegrees, 0.001);
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SHOP_GEO_SYNC_CHANNEL));
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("shop-geo-index-", true));
+        scheduler.execute(this::rebuildAll);
+        scheduler.scheduleWithFixedDelay(this::rebuildAll, rebuildIntervalMinutes, rebuildIntervalMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /*
+     * 半径查询,按距离升序返回最多limit个
+     * 不处理跨越180度经线的范围
+     * */
+    public List<Hit> searchRadius(long typeId, double x, double y, double radiusMeters, int limit) {
+        Grid grid = grids.get(typeId);
+        if (grid == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        return grid.search(x, y, radiusMeters, null, limit);
+    }
+
+    /*
+     * 多类型组合查询
+     * 每个类型在网格内过滤、按排序值取前limit个,再k路归并成总的前limit个
+     * */
+    public List<Hit> search(List<Long> typeIds, Matcher matcher, int limit) {
+        List<List<Hit>> lists = new ArrayList<>(typeIds.size());
+        for (Long typeId : typeIds) {
+            Grid grid = grids.get(typeId);
+            if (grid != null) {
+                lists.add(grid.search(matcher.x, matcher.y, matcher.radius, matcher, limit));
+            }
+        }
+        return merge(lists, limit);
+    }
+
+    //k路归并已按RANK排好序的列表
+    public static List<Hit> merge(List<List<Hit>> lists, int limit) {
+        //堆中保存 列表下标, 列表内下标
+        PriorityQueue<int[]> heap = new PriorityQueue<>(Math.max(1, lists.size()),
+                (a, b) -> RANK.compare(lists.get(a[0]).get(a[1]), lists.get(b[0]).get(b[1])));
+        for (int i = 0; i < lists.size(); i++) {
+            if (!lists.get(i).isEmpty()) {
+                heap.add(new int[]{i, 0});
+            }
+        }
+        List<Hit> merged = new ArrayList<>(Math.min(limit, 64));
+        while (!heap.isEmpty() && merged.size() < limit) {
+            int[] top = heap.poll();
+            List<Hit> list = lists.get(top[0]);
+            merged.add(list.get(top[1]));
+            if (++top[1] < list.size()) {
+                heap.add(top);
+            }
+        }
+        return merged;
+    }
+
+    public static void sort(List<Hit> hits) {
+        hits.sort(RANK);
+    }
+
+    //最近的k个店铺,从一个格子的半径开始倍增,直到找到k个或超过maxRadiusMeters
+    public List<Hit> searchNearest(long typeId, double x, double y, int k, double maxRadiusMeters) {
+        Grid grid = grids.get(typeId);
+        if (grid == null || k <= 0) {
+            return Collections.emptyList();
+        }
+        double radius = Math.min(cellDegrees * METERS_PER_DEGREE, maxRadiusMeters);
+        while (true) {
+            //半径内的结果是完整的,找到k个时就是最近的k个
+            List<Hit> hits = grid.search(x, y, radius, null, k);
+            if (hits.size() >= k || radius >= maxRadiusMeters) {
+                return hits;
+            }
+            radius = Math.min(radius * 2, maxRadiusMeters);
+        }
+    }
+
+    /*
+     * 店铺新增或修改后调用,在事务提交后通知所有节点(包括本节点)重新读取该店铺
+     * 类型变化时会从旧类型的网格中移除
+     * */
+    public void refresh(Long shopId) {
+        if (!enabled || shopId == null) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    publish(shopId);
+                }
+            });
+        } else {
+            publish(shopId);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        long shopId = Long.parseLong(new String(message.getBody(), StandardCharsets.UTF_8));
+        //不在监听线程中查询数据库
+        scheduler.execute(() -> reload(shopId));
+    }
+
+    //每个类型的店铺数量
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("ready", ready);
+        stats.put("cellDegrees", cellDegrees);
+        Map<Long, Integer> types = new TreeMap<>();
+        grids.forEach((typeId, grid) -> types.put(typeId, grid.ids.length));
+        stats.put("types", types);
+        return stats;
+    }
+
+    private void publish(Long shopId) {
+        try {
+            stringRedisTemplate.convertAndSend(SHOP_GEO_SYNC_CHANNEL, shopId.toString());
+        } catch (Exception e) {
+            //通知失败时等待定期重建,本节点直接更新
+            log.warn("发布店铺坐标变更失败:" + shopId, e);
+            scheduler.execute(() -> reload(shopId));
+        }
+    }
+
+    //重新读取一个店铺,重建受影响的类型
+    private synchronized void reload(long shopId) {
+        try {
+            Shop shop = shopMapper.selectOne(new QueryWrapper<Shop>()
+                    .select(SELECT_COLUMNS)
+                    .eq("id", shopId));
+            Point old = points.remove(shopId);
+            if (shop != null && shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+                points.put(shopId, new Point(shop));
+                rebuildType(shop.getTypeId());
+            }
+            if (old != null && (shop == null || !old.typeId.equals(shop.getTypeId()))) {
+                rebuildType(old.typeId);
+            }
+        } catch (Exception e) {
+            log.error("更新店铺空间索引失败:" + shopId, e);
+        }
+    }
+
+    //按id分批扫描全表,全部读完后一次替换所有网格
+    private synchronized void rebuildAll() {
+        try {
+            long start = System.currentTimeMillis();
+            Map<Long, Point> loaded = new HashMap<>();
+            long lastId = 0;
+            while (true) {
+                List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                        .select(SELECT_COLUMNS)
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("limit " + scanBatch));
+                for (Shop shop : shops) {
+                    if (shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+                        loaded.put(shop.getId(), new Point(shop));
+                    }
+                }
+                if (shops.size() < scanBatch) {
+                    break;
+                }
+                lastId = shops.get(shops.size() - 1).getId();
+            }
+            points.clear();
+            points.putAll(loaded);
+            Map<Long, List<Long>> byType = groupByType();
+            for (Map.Entry<Long, List<Long>> entry : byType.entrySet()) {
+                grids.put(entry.getKey(), buildGrid(entry.getValue()));
+            }
+            grids.keySet().retainAll(byType.keySet());
+            ready = true;
+            log.info("店铺空间索引构建完成,店铺数:" + points.size() + ",耗时:" + (System.currentTimeMillis() - start) + "ms");
+        } catch (Exception e) {
+            log.error("构建店铺空间索引失败", e);
+        }
+    }
+
+    private void rebuildType(Long typeId) {
+        List<Long> ids = groupByType().get(typeId);
+        if (ids == null) {
+            grids.remove(typeId);
+        } else {
+            grids.put(typeId, buildGrid(ids));
+        }
+    }
+
+    private Map<Long, List<Long>> groupByType() {
+        Map<Long, List<Long>> byType = new HashMap<>();
+        points.forEach((id, point) -> byType.computeIfAbsent(point.typeId, t -> new ArrayList<>()).add(id));
+        return byType;
+    }
+
+    //按格子排序后放入数组,同一个格子的店铺连续存放
+    private Grid buildGrid(List<Long> shopIds) {
+        int n = shopIds.size();
+        long[] cellOf = new long[n];
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            Point point = points.get(shopIds.get(i));
+            cellOf[i] = cell(row(point.y), column(point.x));
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> cellOf[i]));
+        Grid grid = new Grid(n);
+        long[] cells = new long[n];
+        int[] starts = new int[n + 1];
+        int cellCount = 0;
+        for (int i = 0; i < n; i++) {
+            int j = order[i];
+            Point point = points.get(shopIds.get(j));
+            grid.ids[i] = shopIds.get(j);
+            grid.xs[i] = point.x;
+            grid.ys[i] = point.y;
+            grid.prices[i] = point.avgPrice;
+            grid.scores[i] = point.score;
+            grid.solds[i] = point.sold;
+            grid.opens[i] = point.open;
+            grid.closes[i] = point.close;
+            if (cellCount == 0 || cells[cellCount - 1] != cellOf[j]) {
+                cells[cellCount] = cellOf[j];
+                starts[cellCount] = i;
+                cellCount++;
+            }
+        }
+        starts[cellCount] = n;
+        grid.cells = Arrays.copyOf(cells, cellCount);
+        grid.starts = Arrays.copyOf(starts, cellCount + 1);
+        return grid;
+    }
+
+    private long row(double y) {
+        return (long) Math.floor((y + 90) / cellDegrees);
+    }
+
+    private long column(double x) {
+        return (long) Math.floor((x + 180) / cellDegrees);
+    }
+
+    private static long cell(long row, long column) {
+        return row * COLUMNS + column;
+    }
+
+    //两点间的球面距离,米
+    public static double haversine(double x1, double y1, double x2, double y2) {
+        double dLat = Math.toRadians(y2 - y1);
+        double dLng = Math.toRadians(x2 - x1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(y1)) * Math.cos(Math.toRadians(y2)) * Math.sin(dLng / 2) * Math.sin(dLng / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    //营业时间 10:00-22:00 解析为开始、结束的分钟数,结束早于开始表示跨夜,无法解析时返回null
+    public static int[] parseOpenHours(String openHours) {
+        if (StrUtil.isBlank(openHours)) {
+            return null;
+        }
+        String[] parts = openHours.trim().split("-");
+        if (parts.length != 2) {
+            return null;
+        }
+        try {
+            LocalTime open = LocalTime.parse(parts[0].trim().length() == 4 ? "0" + parts[0].trim() : parts[0].trim());
+            LocalTime close = LocalTime.parse(parts[1].trim().length() == 4 ? "0" + parts[1].trim() : parts[1].trim());
+            return new int[]{open.getHour() * 60 + open.getMinute(), close.getHour() * 60 + close.getMinute()};
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    @Getter
+    public static class Hit {
+        private final long id;
+        //距离,米
+        private final double distance;
+        //排序值,越小越靠前
+        private final double rank;
+
+        public Hit(long id, double distance) {
+            this(id, distance, distance);
+        }
+
+        public Hit(long id, double distance, double rank) {
+            this.id = id;
+            this.distance = distance;
+            this.rank = rank;
+        }
+    }
+
+    //排序方式
+    public enum Sort {
+        DISTANCE, SCORE, SOLD, BLEND;
+
+        public static Sort of(String name) {
+            for (Sort sort : values()) {
+                if (sort.name().equalsIgnoreCase(name)) {
+                    return sort;
+                }
+            }
+            return DISTANCE;
+        }
+    }
+
+    /*
+     * 组合查询的过滤条件和排序值
+     * blend = 0.5 * 距离分(半径边缘为0) + 0.3 * 评分/50 + 0.2 * 销量分(log10,1万封顶)
+     * */
+    public static class Matcher {
+        private final double x;
+        private final double y;
+        private final double radius;
+        private final long minPrice;
+        private final long maxPrice;
+        private final int minScore;
+        private final int maxScore;
+        private final boolean openNow;
+        private final int nowMinute;
+        private final Sort sort;
+
+        public Matcher(ShopGeoQuery query, double radius) {
+            this.x = query.getX();
+            this.y = query.getY();
+            this.radius = radius;
+            this.minPrice = query.getMinPrice() == null ? Long.MIN_VALUE : query.getMinPrice();
+            this.maxPrice = query.getMaxPrice() == null ? Long.MAX_VALUE : query.getMaxPrice();
+            this.minScore = query.getMinScore() == null ? Integer.MIN_VALUE : query.getMinScore();
+            this.maxScore = query.getMaxScore() == null ? Integer.MAX_VALUE : query.getMaxScore();
+            this.openNow = Boolean.TRUE.equals(query.getOpenNow());
+            LocalTime now = LocalTime.now();
+            this.nowMinute = now.getHour() * 60 + now.getMinute();
+            this.sort = Sort.of(query.getSort());
+        }
+
+        //未知的均价、评分不满足范围条件,未知的营业时间不满足营业中条件
+        public boolean matches(long price, int score, int open, int close) {
+            if ((minPrice != Long.MIN_VALUE || maxPrice != Long.MAX_VALUE) && (price < 0 || price < minPrice || price > maxPrice)) {
+                return false;
+            }
+            if ((minScore != Integer.MIN_VALUE || maxScore != Integer.MAX_VALUE) && (score < 0 || score < minScore || score > maxScore)) {
+                return false;
+            }
+            if (!openNow) {
+                return true;
+            }
+            if (open < 0) {
+                return false;
+            }
+            return open <= close ? nowMinute >= open && nowMinute < close : nowMinute >= open || nowMinute < close;
+        }
+
+        public double rank(double distance, int score, int sold) {
+            switch (sort) {
+                case SCORE:
+                    return -score;
+                case SOLD:
+                    return -sold;
+                case BLEND:
+                    double near = 1 - Math.min(distance / radius, 1);
+                    double rating = Math.max(score, 0) / 50.0;
+                    double sales = Math.min(Math.log10(1 + Math.max(sold, 0)) / 4, 1);
+                    return -(0.5 * near + 0.3 * rating + 0.2 * sales);
+                default:
+                    return distance;
+            }
+        }
+
+        //按数据库中的店铺判断,不满足条件时返回null
+        public Hit hit(Shop shop, double distance) {
+            Point point = new Point(shop);
+            if (distance > radius || !matches(point.avgPrice, point.score, point.open, point.close)) {
+                return null;
+            }
+            return new Hit(shop.getId(), distance, rank(distance, point.score, point.sold));
+        }
+    }
+
+    private static class Point {
+        private final Long typeId;
+        private final double x;
+        private final double y;
+        //未知时为-1
+        private final long avgPrice;
+        private final int score;
+        private final int sold;
+        private final int open;
+        private final int close;
+
+        Point(Shop shop) {
+            this.typeId = shop.getTypeId();
+            this.x = shop.getX() == null ? 0 : shop.getX();
+            this.y = shop.getY() == null ? 0 : shop.getY();
+            this.avgPrice = shop.getAvgPrice() == null ? -1 : shop.getAvgPrice();
+            this.score = shop.getScore() == null ? -1 : shop.getScore();
+            this.sold = shop.getSold() == null ? 0 : shop.getSold();
+            int[] hours = parseOpenHours(shop.getOpenHours());
+            this.open = hours == null ? -1 : hours[0];
+            this.close = hours == null ? -1 : hours[1];
+        }
+    }
+
+    private class Grid {
+        private final long[] ids;
+        private final double[] xs;
+        private final double[] ys;
+        private final long[] prices;
+        private final int[] scores;
+        private final int[] solds;
+        private final int[] opens;
+        private final int[] closes;
+        //有店铺的格子,升序
+        private long[] cells;
+        //cells[i]的店铺在数组中的范围为[starts[i], starts[i + 1])
+        private int[] starts;
+
+        Grid(int n) {
+            this.ids = new long[n];
+            this.xs = new double[n];
+            this.ys = new double[n];
+            this.prices = new long[n];
+            this.scores = new int[n];
+            this.solds = new int[n];
+            this.opens = new int[n];
+            this.closes = new int[n];
+        }
+
+        //matcher为null时不过滤,按距离排序
+        List<Hit> search(double x, double y, double radiusMeters, Matcher matcher, int limit) {
+            double dLat = radiusMeters / METERS_PER_DEGREE;
+            double cos = Math.max(Math.cos(Math.toRadians(y)), 1e-6);
+            double dLng = Math.min(radiusMeters / (METERS_PER_DEGREE * cos), 180);
+            long rowMin = row(Math.max(y - dLat, -90));
+            long rowMax = row(Math.min(y + dLat, 90));
+            long colMin = column(Math.max(x - dLng, -180));
+            long colMax = column(Math.min(x + dLng, 180));
+            List<Hit> hits = new ArrayList<>();
+            for (long row = rowMin; row <= rowMax; row++) {
+                //同一行的格子key连续,从第一个不小于colMin的格子开始扫描
+                long last = cell(row, colMax);
+                int c = Arrays.binarySearch(cells, cell(row, colMin));
+                for (c = c < 0 ? -c - 1 : c; c < cells.length && cells[c] <= last; c++) {
+                    for (int i = starts[c]; i < starts[c + 1]; i++) {
+                        //先按属性过滤,再计算距离
+                        if (matcher != null && !matcher.matches(prices[i], scores[i], opens[i], closes[i])) {
+                            continue;
+                        }
+                        double distance = haversine(x, y, xs[i], ys[i]);
+                        if (distance <= radiusMeters) {
+                            hits.add(matcher == null ? new Hit(ids[i], distance)
+                                    : new Hit(ids[i], distance, matcher.rank(distance, scores[i], solds[i])));
+                        }
+                    }
+                }
+            }
+            hits.sort(RANK);
+            return hits.size() > limit ? new ArrayList<>(hits.subList(0, limit)) : hits;
+        }
+    }
+}
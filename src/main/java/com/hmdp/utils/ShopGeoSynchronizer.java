@@ -0,0 +1,344 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/*
+ * 维护redis中按类型划分的店铺GEO集合 shop:geo:<typeId>
+ * 全量加载: 按id分页读取tb_shop,每页按类型分组后通过管道GEOADD,不会一次写入整张表
+ * 增量同步: 店铺新增/修改/删除的事务提交后更新,类型变化时从旧类型的集合中移除
+ * 对账: 定期按页比对数据库与redis,补齐缺失或坐标不一致的店铺,移除已删除或已换类型的店铺
+ * 全量加载和对账只在获得锁的一个节点上执行
+ * */
+@Slf4j
+@Component
+public class ShopGeoSynchronizer {
+
+    //坐标误差超过该距离时重新写入,米;GEO按52位geohash保存,误差小于1米
+    private static final double POSITION_TOLERANCE = 1;
+
+    @Value("${hmdp.geo.sync.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.geo.sync.batch:500}")
+    private int batch;
+
+    @Value("${hmdp.geo.sync.reconcile-interval-minutes:30}")
+    private long reconcileIntervalMinutes;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("shop-geo-sync-", true));
+        //redis中没有加载标记时(首次启动或数据丢失)全量加载
+        scheduler.execute(() -> withLock(() -> {
+            if (!BooleanUtil.isTrue(stringRedisTemplate.hasKey(SHOP_GEO_LOADED_KEY))) {
+                bulkLoad();
+            }
+        }));
+        scheduler.scheduleWithFixedDelay(() -> withLock(this::reconcile),
+                reconcileIntervalMinutes, reconcileIntervalMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    //店铺新增或修改后调用,oldTypeId为修改前的类型,新增时为null
+    public void onShopSaved(Long shopId, Long oldTypeId) {
+        afterCommit(() -> sync(shopId, oldTypeId));
+    }
+
+    //店铺删除后调用
+    public void onShopDeleted(Long shopId, Long typeId) {
+        if (typeId == null) {
+            return;
+        }
+        afterCommit(() -> stringRedisTemplate.opsForZSet().remove(SHOP_GEO_KEY + typeId, shopId.toString()));
+    }
+
+    //全量加载,返回写入的店铺数
+    public long bulkLoad() {
+        long start = System.currentTimeMillis();
+        long count = 0;
+        long lastId = 0;
+        while (true) {
+            List<Shop> shops = page(lastId);
+            count += geoAdd(shops);
+            if (shops.size() < batch) {
+                break;
+            }
+            lastId = shops.get(shops.size() - 1).getId();
+        }
+        stringRedisTemplate.opsForValue().set(SHOP_GEO_LOADED_KEY, String.valueOf(System.currentTimeMillis()));
+        log.info("店铺GEO全量加载完成,店铺数:" + count + ",耗时:" + (System.currentTimeMillis() - start) + "ms");
+        return count;
+    }
+
+    /*
+     * 对账
+     * 1.按页读取数据库,管道GEOPOS检查每个店铺在其类型集合中的坐标,缺失或偏差过大的重新GEOADD
+     * 2.扫描所有类型集合,移除数据库中不存在或类型已变化的成员
+     *   扫描数据库之后新增或换类型的店铺不在typeOf中,移除前按批再查一次数据库确认
+     * */
+    public void reconcile() {
+        long start = System.currentTimeMillis();
+        Map<Long, Long> typeOf = new HashMap<>();
+        long fixed = 0;
+        long lastId = 0;
+        while (true) {
+            List<Shop> shops = page(lastId);
+            shops.forEach(shop -> typeOf.put(shop.getId(), shop.getTypeId()));
+            fixed += geoAdd(stale(shops));
+            if (shops.size() < batch) {
+                break;
+            }
+            lastId = shops.get(shops.size() - 1).getId();
+        }
+        long removed = 0;
+        for (String key : typeKeys()) {
+            Long typeId = Long.valueOf(key.substring(SHOP_GEO_KEY.length()));
+            removed += removeOrphans(key, typeId, typeOf);
+        }
+        log.info("店铺GEO对账完成,店铺数:" + typeOf.size() + ",修复:" + fixed + ",移除:" + removed
+                + ",耗时:" + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private void sync(Long shopId, Long oldTypeId) {
+        try {
+            Shop shop = shopMapper.selectOne(new QueryWrapper<Shop>()
+                    .select("id", "type_id", "x", "y")
+                    .eq("id", shopId));
+            List<Shop> shops = shop == null ? Collections.emptyList() : Collections.singletonList(shop);
+            geoAdd(shops);
+            if (oldTypeId != null && (shop == null || !oldTypeId.equals(shop.getTypeId()))) {
+                stringRedisTemplate.opsForZSet().remove(SHOP_GEO_KEY + oldTypeId, shopId.toString());
+            }
+        } catch (Exception e) {
+            //失败时由对账修复
+            log.warn("同步店铺GEO失败:" + shopId, e);
+        }
+    }
+
+    private List<Shop> page(long lastId) {
+        return shopMapper.selectList(new QueryWrapper<Shop>()
+                .select("id", "type_id", "x", "y")
+                .gt("id", lastId)
+                .orderByAsc("id")
+                .last("limit " + batch));
+    }
+
+    //按类型分组后通过管道GEOADD,跳过没有类型或坐标的店铺
+    private long geoAdd(List<Shop> shops) {
+        Map<Long, Map<byte[], Point>> byType = new HashMap<>();
+        long count = 0;
+        for (Shop shop : shops) {
+            if (shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+                continue;
+            }
+            byType.computeIfAbsent(shop.getTypeId(), t -> new HashMap<>())
+                    .put(bytes(shop.getId().toString()), new Point(shop.getX(), shop.getY()));
+            count++;
+        }
+        if (byType.isEmpty()) {
+            return 0;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            byType.forEach((typeId, members) -> connection.geoCommands().geoAdd(bytes(SHOP_GEO_KEY + typeId), members));
+            return null;
+        });
+        return count;
+    }
+
+    //管道GEOPOS,返回缺失或坐标偏差过大的店铺
+    private List<Shop> stale(List<Shop> shops) {
+        List<Shop> valid = new ArrayList<>(shops.size());
+        for (Shop shop : shops) {
+            if (shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+                valid.add(shop);
+            }
+        }
+        List<Object> positions = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Shop shop : valid) {
+                connection.geoCommands().geoPos(bytes(SHOP_GEO_KEY + shop.getTypeId()), bytes(shop.getId().toString()));
+            }
+            return null;
+        });
+        List<Shop> stale = new ArrayList<>();
+        for (int i = 0; i < valid.size(); i++) {
+            Shop shop = valid.get(i);
+            Point point = firstPoint(positions.get(i));
+            if (point == null || ShopGeoIndex.haversine(point.getX(), point.getY(), shop.getX(), shop.getY()) > POSITION_TOLERANCE) {
+                stale.add(shop);
+            }
+        }
+        return stale;
+    }
+
+    private static Point firstPoint(Object result) {
+        if (!(result instanceof List) || ((List<?>) result).isEmpty()) {
+            return null;
+        }
+        Object point = ((List<?>) result).get(0);
+        return point instanceof Point ? (Point) point : null;
+    }
+
+    //ZSCAN一个类型集合,分批移除数据库中不存在或已不属于该类型的成员
+    private long removeOrphans(String key, Long typeId, Map<Long, Long> typeOf) {
+        long removed = 0;
+        List<byte[]> orphans = new ArrayList<>();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            ScanOptions options = ScanOptions.scanOptions().count(batch).build();
+            try (Cursor<RedisZSetCommands.Tuple> cursor = connection.zSetCommands().zScan(bytes(key), options)) {
+                while (cursor.hasNext()) {
+                    byte[] member = cursor.next().getValue();
+                    Long id = parseId(new String(member, StandardCharsets.UTF_8));
+                    if (id == null || !typeId.equals(typeOf.get(id))) {
+                        orphans.add(member);
+                    }
+                }
+            }
+            return null;
+        });
+        for (int from = 0; from < orphans.size(); from += batch) {
+            List<byte[]> members = confirmOrphans(typeId, orphans.subList(from, Math.min(from + batch, orphans.size())));
+            if (members.isEmpty()) {
+                continue;
+            }
+            byte[][] array = members.toArray(new byte[0][]);
+            stringRedisTemplate.execute((RedisCallback<Long>) connection -> connection.zSetCommands().zRem(bytes(key), array));
+            removed += members.size();
+        }
+        return removed;
+    }
+
+    //按当前数据库再确认一次,排除对账扫描后新增或换到该类型的店铺
+    private List<byte[]> confirmOrphans(Long typeId, List<byte[]> candidates) {
+        Map<Long, byte[]> byId = new HashMap<>(candidates.size());
+        List<byte[]> orphans = new ArrayList<>(candidates.size());
+        for (byte[] member : candidates) {
+            Long id = parseId(new String(member, StandardCharsets.UTF_8));
+            if (id == null) {
+                orphans.add(member);
+            } else {
+                byId.put(id, member);
+            }
+        }
+        if (byId.isEmpty()) {
+            return orphans;
+        }
+        Map<Long, Long> current = new HashMap<>(byId.size());
+        shopMapper.selectList(new QueryWrapper<Shop>()
+                .select("id", "type_id")
+                .in("id", byId.keySet()))
+                .forEach(shop -> current.put(shop.getId(), shop.getTypeId()));
+        byId.forEach((id, member) -> {
+            if (!typeId.equals(current.get(id))) {
+                orphans.add(member);
+            }
+        });
+        return orphans;
+    }
+
+    //所有类型集合的key,排除滚动查询的快照等其他shop:geo:前缀的key
+    private List<String> typeKeys() {
+        List<String> keys = new ArrayList<>();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            ScanOptions options = ScanOptions.scanOptions().match(SHOP_GEO_KEY + "*").count(batch).build();
+            try (Cursor<byte[]> cursor = connection.keyCommands().scan(options)) {
+                while (cursor.hasNext()) {
+                    String key = new String(cursor.next(), StandardCharsets.UTF_8);
+                    if (StrUtil.isNumeric(key.substring(SHOP_GEO_KEY.length()))) {
+                        keys.add(key);
+                    }
+                }
+            }
+            return null;
+        });
+        return keys;
+    }
+
+    private static Long parseId(String member) {
+        return StrUtil.isNumeric(member) ? Long.valueOf(member) : null;
+    }
+
+    private void withLock(Runnable task) {
+        String token = UUID.randomUUID().toString(true);
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(LOCK_SHOP_GEO_KEY, token, LOCK_SHOP_GEO_TTL, TimeUnit.MINUTES);
+        if (!BooleanUtil.isTrue(locked)) {
+            return;
+        }
+        try {
+            task.run();
+        } catch (Exception e) {
+            log.error("店铺GEO全量加载或对账失败", e);
+        } finally {
+            redisScriptRegistry.executeForLong("unlock", Collections.singletonList(LOCK_SHOP_GEO_KEY), token);
+        }
+    }
+
+    //在事务提交后执行,没有事务时立即执行
+    private static void afterCommit(Runnable task) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    task.run();
+                }
+            });
+        } else {
+            task.run();
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,462 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SHOP_NAME_SYNC_CHANNEL;
+
+/*
+ * 店铺名称的进程内倒排索引,代替 like '%name%'
+ * 名称统一为小写半角并去掉空格和标点后,按单字和相邻两字(bigram)分词,适合没有空格分词的中文店名
+ * 倒排列表为升序的店铺id,按差值varint压缩保存
+ * 查询时求所有bigram倒排列表的交集,再校验名称包含(或以其开头)关键字,结果按评分、销量排序
+ * 启动时在后台按id分批扫描tb_shop构建,店铺新增/修改/删除后通过shop:name:sync频道通知所有节点更新该店铺
+ * 构建完成前isReady()为false,调用方查询数据库
+ * */
+@Slf4j
+@Component
+public class ShopNameIndex implements MessageListener {
+
+    //评分高的在前,相同时销量高的在前
+    private static final Comparator<Doc> RANK = Comparator.comparingInt((Doc d) -> -d.score)
+            .thenComparingInt(d -> -d.sold)
+            .thenComparingLong(d -> d.id);
+
+    private static final byte[] EMPTY_POSTING = new byte[0];
+
+    @Value("${hmdp.search.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.search.scan-batch:1000}")
+    private int scanBatch;
+
+    @Value("${hmdp.search.rebuild-interval-minutes:360}")
+    private long rebuildIntervalMinutes;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //词 -> 压缩后的倒排列表,更新时整体替换
+    private volatile Map<String, byte[]> postings = new ConcurrentHashMap<>();
+
+    private volatile Map<Long, Doc> docs = new ConcurrentHashMap<>();
+
+    //所有店铺按评分、销量排序的结果,关键字为空时使用,店铺变化后置空
+    private volatile long[] ranked;
+
+    //店铺变化的次数,排序期间发生变化时不保存排序结果
+    private volatile long version;
+
+    private volatile boolean ready;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SHOP_NAME_SYNC_CHANNEL));
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("shop-name-index-", true));
+        scheduler.execute(this::rebuildAll);
+        scheduler.scheduleWithFixedDelay(this::rebuildAll, rebuildIntervalMinutes, rebuildIntervalMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /*
+     * 按名称查询,返回排序后第from个起最多limit个店铺id
+     * prefix为true时只匹配以关键字开头的名称;关键字为空时返回所有店铺
+     * */
+    public List<Long> search(String keyword, boolean prefix, int from, int limit) {
+        String query = normalize(keyword);
+        List<Long> result = new ArrayList<>(limit);
+        if (query.isEmpty()) {
+            long[] all = ranked();
+            for (int i = from; i < all.length && result.size() < limit; i++) {
+                result.add(all[i]);
+            }
+            return result;
+        }
+        List<Doc> matched = match(query, prefix);
+        matched.sort(RANK);
+        for (int i = from; i < matched.size() && result.size() < limit; i++) {
+            result.add(matched.get(i).id);
+        }
+        return result;
+    }
+
+    //输入提示: 以关键字开头的店铺名称,按评分、销量排序,名称去重
+    public List<String> suggest(String keyword, int limit) {
+        String query = normalize(keyword);
+        if (query.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<Doc> matched = match(query, true);
+        matched.sort(RANK);
+        Set<String> names = new LinkedHashSet<>();
+        for (Doc doc : matched) {
+            if (names.size() >= limit) {
+                break;
+            }
+            names.add(doc.name);
+        }
+        return new ArrayList<>(names);
+    }
+
+    //店铺新增、修改或删除后调用,在事务提交后通知所有节点(包括本节点)重新读取该店铺
+    public void refresh(Long shopId) {
+        if (!enabled || shopId == null) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    publish(shopId);
+                }
+            });
+        } else {
+            publish(shopId);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        long shopId = Long.parseLong(new String(message.getBody(), StandardCharsets.UTF_8));
+        //不在监听线程中查询数据库
+        scheduler.execute(() -> reload(shopId));
+    }
+
+    //店铺数、词数、倒排列表总字节数
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("ready", ready);
+        stats.put("docs", docs.size());
+        stats.put("terms", postings.size());
+        long bytes = 0;
+        for (byte[] posting : postings.values()) {
+            bytes += posting.length;
+        }
+        stats.put("postingBytes", bytes);
+        return stats;
+    }
+
+    //小写、全角转半角,只保留字母和数字(包括汉字)
+    public static String normalize(String text) {
+        if (StrUtil.isBlank(text)) {
+            return "";
+        }
+        String s = Convert.toDBC(text).toLowerCase();
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    //单字和相邻两字
+    private static Set<String> terms(String normalized) {
+        Set<String> terms = new TreeSet<>();
+        for (int i = 0; i < normalized.length(); i++) {
+            terms.add(normalized.substring(i, i + 1));
+            if (i + 1 < normalized.length()) {
+                terms.add(normalized.substring(i, i + 2));
+            }
+        }
+        return terms;
+    }
+
+    //一个字时查单字的倒排列表,否则求所有bigram的交集,再校验名称
+    private List<Doc> match(String query, boolean prefix) {
+        List<byte[]> lists = new ArrayList<>();
+        if (query.length() == 1) {
+            lists.add(postings.getOrDefault(query, EMPTY_POSTING));
+        } else {
+            for (int i = 0; i + 1 < query.length(); i++) {
+                lists.add(postings.getOrDefault(query.substring(i, i + 2), EMPTY_POSTING));
+            }
+        }
+        long[] ids = intersect(lists);
+        Map<Long, Doc> current = docs;
+        List<Doc> matched = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            Doc doc = current.get(id);
+            //bigram都出现不代表连续出现
+            if (doc != null && (prefix ? doc.normalized.startsWith(query) : doc.normalized.contains(query))) {
+                matched.add(doc);
+            }
+        }
+        return matched;
+    }
+
+    //从最短的列表开始求交集
+    private static long[] intersect(List<byte[]> lists) {
+        lists.sort(Comparator.comparingInt(p -> p.length));
+        long[] result = decode(lists.get(0));
+        for (int i = 1; i < lists.size() && result.length > 0; i++) {
+            long[] other = decode(lists.get(i));
+            long[] merged = new long[Math.min(result.length, other.length)];
+            int n = 0;
+            for (int a = 0, b = 0; a < result.length && b < other.length; ) {
+                if (result[a] < other[b]) {
+                    a++;
+                } else if (result[a] > other[b]) {
+                    b++;
+                } else {
+                    merged[n++] = result[a];
+                    a++;
+                    b++;
+                }
+            }
+            result = Arrays.copyOf(merged, n);
+        }
+        return result;
+    }
+
+    private long[] ranked() {
+        long[] all = ranked;
+        if (all == null) {
+            long before = version;
+            List<Doc> list = new ArrayList<>(docs.values());
+            list.sort(RANK);
+            all = new long[list.size()];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = list.get(i).id;
+            }
+            if (before == version) {
+                ranked = all;
+            }
+        }
+        return all;
+    }
+
+    private void publish(Long shopId) {
+        try {
+            stringRedisTemplate.convertAndSend(SHOP_NAME_SYNC_CHANNEL, shopId.toString());
+        } catch (Exception e) {
+            //通知失败时等待定期重建,本节点直接更新
+            log.warn("发布店铺名称变更失败:" + shopId, e);
+            scheduler.execute(() -> reload(shopId));
+        }
+    }
+
+    //重新读取一个店铺,只修改旧名称和新名称涉及的词
+    private synchronized void reload(long shopId) {
+        try {
+            Shop shop = shopMapper.selectOne(new QueryWrapper<Shop>()
+                    .select("id", "name", "score", "sold")
+                    .eq("id", shopId));
+            Doc old = docs.get(shopId);
+            Doc doc = shop == null || StrUtil.isBlank(shop.getName()) ? null : new Doc(shop);
+            Set<String> removed = old == null ? new TreeSet<>() : terms(old.normalized);
+            Set<String> added = doc == null ? new TreeSet<>() : terms(doc.normalized);
+            for (String term : removed) {
+                if (!added.contains(term)) {
+                    byte[] posting = remove(postings.getOrDefault(term, EMPTY_POSTING), shopId);
+                    if (posting.length == 0) {
+                        postings.remove(term);
+                    } else {
+                        postings.put(term, posting);
+                    }
+                }
+            }
+            for (String term : added) {
+                if (!removed.contains(term)) {
+                    postings.put(term, add(postings.getOrDefault(term, EMPTY_POSTING), shopId));
+                }
+            }
+            if (doc == null) {
+                docs.remove(shopId);
+            } else {
+                docs.put(shopId, doc);
+            }
+            version++;
+            ranked = null;
+        } catch (Exception e) {
+            log.error("更新店铺名称索引失败:" + shopId, e);
+        }
+    }
+
+    //按id分批扫描全表,构建完成后整体替换
+    private synchronized void rebuildAll() {
+        try {
+            long start = System.currentTimeMillis();
+            Map<Long, Doc> loaded = new ConcurrentHashMap<>();
+            //id按升序读取,直接追加即为有序的倒排列表
+            Map<String, List<Long>> lists = new HashMap<>();
+            long lastId = 0;
+            while (true) {
+                List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                        .select("id", "name", "score", "sold")
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("limit " + scanBatch));
+                for (Shop shop : shops) {
+                    if (StrUtil.isBlank(shop.getName())) {
+                        continue;
+                    }
+                    Doc doc = new Doc(shop);
+                    loaded.put(doc.id, doc);
+                    for (String term : terms(doc.normalized)) {
+                        lists.computeIfAbsent(term, t -> new ArrayList<>()).add(doc.id);
+                    }
+                }
+                if (shops.size() < scanBatch) {
+                    break;
+                }
+                lastId = shops.get(shops.size() - 1).getId();
+            }
+            Map<String, byte[]> built = new ConcurrentHashMap<>(lists.size() * 2);
+            lists.forEach((term, ids) -> built.put(term, encode(ids.stream().mapToLong(Long::longValue).toArray())));
+            postings = built;
+            docs = loaded;
+            version++;
+            ranked = null;
+            ready = true;
+            log.info("店铺名称索引构建完成,店铺数:" + loaded.size() + ",词数:" + built.size()
+                    + ",耗时:" + (System.currentTimeMillis() - start) + "ms");
+        } catch (Exception e) {
+            log.error("构建店铺名称索引失败", e);
+        }
+    }
+
+    private static byte[] add(byte[] posting, long id) {
+        long[] ids = decode(posting);
+        int i = Arrays.binarySearch(ids, id);
+        if (i >= 0) {
+            return posting;
+        }
+        i = -i - 1;
+        long[] added = new long[ids.length + 1];
+        System.arraycopy(ids, 0, added, 0, i);
+        added[i] = id;
+        System.arraycopy(ids, i, added, i + 1, ids.length - i);
+        return encode(added);
+    }
+
+    private static byte[] remove(byte[] posting, long id) {
+        long[] ids = decode(posting);
+        int i = Arrays.binarySearch(ids, id);
+        if (i < 0) {
+            return posting;
+        }
+        long[] removed = new long[ids.length - 1];
+        System.arraycopy(ids, 0, removed, 0, i);
+        System.arraycopy(ids, i + 1, removed, i, ids.length - i - 1);
+        return encode(removed);
+    }
+
+    //升序id按与前一个的差值写成varint,开头为个数
+    private static byte[] encode(long[] ids) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(ids.length + 2);
+        writeVarLong(out, ids.length);
+        long prev = 0;
+        for (long id : ids) {
+            writeVarLong(out, id - prev);
+            prev = id;
+        }
+        return out.toByteArray();
+    }
+
+    private static long[] decode(byte[] posting) {
+        if (posting.length == 0) {
+            return new long[0];
+        }
+        int[] pos = {0};
+        long[] ids = new long[(int) readVarLong(posting, pos)];
+        long prev = 0;
+        for (int i = 0; i < ids.length; i++) {
+            prev += readVarLong(posting, pos);
+            ids[i] = prev;
+        }
+        return ids;
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(byte[] data, int[] pos) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = data[pos[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static class Doc {
+        private final long id;
+        private final String name;
+        private final String normalized;
+        private final int score;
+        private final int sold;
+
+        Doc(Shop shop) {
+            this.id = shop.getId();
+            this.name = shop.getName();
+            this.normalized = normalize(shop.getName());
+            this.score = shop.getScore() == null ? 0 : shop.getScore();
+            this.sold = shop.getSold() == null ? 0 : shop.getSold();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.ShopType;
+import com.hmdp.service.IShopTypeService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/*
+ * 店铺类型列表的本地只读快照,同时保存序列化好的/shop-type/list响应
+ * 请求直接返回快照中的字节,不访问redis也不做序列化
+ * 刷新: cache:invalidate频道收到cache:shop:type时重新加载;定时检查版本号key,其他节点修改后版本号变化时重新加载
+ * */
+@Slf4j
+@Component
+public class ShopTypeSnapshot implements MessageListener {
+
+    @Value("${hmdp.shop-type.version-check-seconds:30}")
+    private long versionCheckSeconds;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private ObjectMapper objectMapper;
+
+    private volatile Snapshot current;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("shop-type-snapshot-", true));
+        scheduler.scheduleWithFixedDelay(this::checkVersion, versionCheckSeconds, versionCheckSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    //不可修改的类型列表
+    public List<ShopType> list() {
+        return snapshot().types;
+    }
+
+    //序列化好的Result响应
+    public byte[] body() {
+        return snapshot().body;
+    }
+
+    //店铺类型修改后调用: 增加版本号,删除redis缓存并通知各节点重新加载
+    public void invalidate() {
+        stringRedisTemplate.opsForValue().increment(SHOP_TYPE_VERSION_KEY);
+        cacheClient.delete(CACHE_SHOP_TYPE_KEY);
+        reload();
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        if (CACHE_SHOP_TYPE_KEY.equals(new String(message.getBody(), StandardCharsets.UTF_8))) {
+            //不在监听线程中查询数据库
+            scheduler.execute(this::reload);
+        }
+    }
+
+    //重新加载,可由预热调用
+    public synchronized void reload() {
+        //先读版本号再读数据,加载期间版本变化时下次检查会再次加载
+        String version = stringRedisTemplate.opsForValue().get(SHOP_TYPE_VERSION_KEY);
+        List<ShopType> types = Collections.unmodifiableList(new ArrayList<>(shopTypeService.queryShopType()));
+        Result result = types.isEmpty() ? Result.fail("商铺类型数据为0") : Result.ok(types);
+        try {
+            current = new Snapshot(types, objectMapper.writeValueAsBytes(result), version);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("店铺类型序列化失败", e);
+        }
+        log.info("已加载店铺类型快照,数量:" + types.size() + ",版本:" + version);
+    }
+
+    private Snapshot snapshot() {
+        Snapshot snapshot = current;
+        if (snapshot == null) {
+            synchronized (this) {
+                if (current == null) {
+                    reload();
+                }
+                snapshot = current;
+            }
+        }
+        return snapshot;
+    }
+
+    private void checkVersion() {
+        Snapshot snapshot = current;
+        if (snapshot == null) {
+            return;
+        }
+        try {
+            String version = stringRedisTemplate.opsForValue().get(SHOP_TYPE_VERSION_KEY);
+            if (!Objects.equals(version, snapshot.version)) {
+                reload();
+            }
+        } catch (Exception e) {
+            log.warn("检查店铺类型版本失败", e);
+        }
+    }
+
+    private static class Snapshot {
+        private final List<ShopType> types;
+        private final byte[] body;
+        private final String version;
+
+        Snapshot(List<ShopType> types, byte[] body, String version) {
+            this.types = types;
+            this.body = body;
+            this.version = version;
+        }
+    }
+}
@@ -1,9 +1,7 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.lang.UUID;
-import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 
 import java.util.Collections;
 import java.util.concurrent.TimeUnit;
@@ -14,19 +12,15 @@ public class SimpleRedisLock implements ILock {
     public static final String KEY_PREFIX = "lock";
     private StringRedisTemplate stringRedisTemplate;
 
-    public static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
-
-    static {
-        UNLOCK_SCRIPT = new DefaultRedisScript<>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
-        UNLOCK_SCRIPT.setResultType(Long.class);
-    }
-
     public static final String ID_PREFIX = UUID.randomUUID().toString(true);
 
-    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate) {
+    private RedisScriptRegistry redisScriptRegistry;
+
+    //通过脚本注册表以EVALSHA释放锁
+    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate, RedisScriptRegistry redisScriptRegistry) {
         this.name = name;
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisScriptRegistry = redisScriptRegistry;
     }
 
     @Override
@@ -41,7 +35,7 @@ public class SimpleRedisLock implements ILock {
     @Override
     public void unlock() {
         //调用lua脚本
-        stringRedisTemplate.execute(UNLOCK_SCRIPT,
+        redisScriptRegistry.executeForLong("unlock",
                 Collections.singletonList(KEY_PREFIX + name),
                 ID_PREFIX + Thread.currentThread().getId());
 
@@ -0,0 +1,199 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.NamedThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+import static com.hmdp.utils.RedisConstants.ID_WORKER_SEQ_KEY;
+import static com.hmdp.utils.RedisConstants.ID_WORKER_TTL;
+
+/*
+ * 雪花算法id生成器,发号过程不访问redis
+ * 0 | 1位标记(固定为1) | 40位毫秒时间戳 | 10位workerId | 12位序列号
+ * hmdp.id.generator=snowflake时启用,并作为IdGenerator的首选实现
+ * 与RedisIdWorker的id空间不相交: RedisIdWorker为 秒级时间戳 << 32 | 序列号,秒级时间戳小于2^30时第62位恒为0,
+ * 雪花id第62位恒为1,切换发号器后不会与已有订单id重复;两者的时间戳都在约34年后用完,届时需要重新规划
+ * workerId租约被其他节点占用,或超过租约有效期仍未续约成功(redis不可用)时停止发号,重新租用成功前nextId抛出异常
+ * */
+@Slf4j
+@Primary
+@Component
+@ConditionalOnProperty(name = "hmdp.id.generator", havingValue = "snowflake")
+public class SnowflakeIdWorker implements IdGenerator {
+
+    public static final long EPOCH = RedisIdWorker.BEGIN_TIMESTAMP * 1000;
+
+    public static final long TIMESTAMP_BITS = 40;
+    public static final long WORKER_BITS = 10;
+    public static final long SEQUENCE_BITS = 12;
+    public static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    public static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    public static final long MAX_TIMESTAMP = (1L << TIMESTAMP_BITS) - 1;
+    //第62位,区分雪花id与RedisIdWorker的id
+    public static final long TAG = 1L << (TIMESTAMP_BITS + WORKER_BITS + SEQUENCE_BITS);
+
+    //时钟回拨超过该值时打印告警
+    private static final long MAX_BACKWARD_MS = 5000;
+
+    //租约到期前提前停止发号的余量,覆盖续约请求耗时和节点间的时钟误差
+    private static final long LEASE_SAFETY_MS = 10000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //本地配置的workerId,小于0时从redis租用
+    @Value("${hmdp.id.snowflake.worker-id:-1}")
+    private long configuredWorkerId;
+
+    private volatile long workerId;
+
+    //租约有效期: 最近一次租用或续约成功时的时间 + 租约时长 - 余量,超过后停止发号;本地配置workerId时不限制
+    private volatile long leaseValidUntil = Long.MAX_VALUE;
+
+    private final String leaseOwner = UUID.randomUUID().toString(true);
+
+    private ScheduledExecutorService leaseRenewer;
+
+    //(时间戳 << SEQUENCE_BITS) | 序列号,CAS更新
+    private final AtomicLong state = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        if (configuredWorkerId >= 0) {
+            if (configuredWorkerId > MAX_WORKER_ID) {
+                throw new IllegalStateException("workerId超出范围:" + configuredWorkerId);
+            }
+            workerId = configuredWorkerId;
+        } else {
+            long start = System.currentTimeMillis();
+            workerId = leaseWorkerId();
+            extendLease(start);
+            leaseRenewer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("id-worker-lease-", true));
+            long period = ID_WORKER_TTL / 3;
+            leaseRenewer.scheduleAtFixedRate(this::renewLease, period, period, TimeUnit.SECONDS);
+        }
+        log.info("雪花算法workerId:" + workerId);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (leaseRenewer == null) {
+            return;
+        }
+        leaseRenewer.shutdownNow();
+        String key = ID_WORKER_KEY + workerId;
+        if (leaseOwner.equals(stringRedisTemplate.opsForValue().get(key))) {
+            stringRedisTemplate.delete(key);
+        }
+    }
+
+    @Override
+    public long nextId(String keyPrefix) {
+        if (System.currentTimeMillis() > leaseValidUntil) {
+            throw new IllegalStateException("workerId租约已失效,暂停发号:" + workerId);
+        }
+        while (true) {
+            long last = state.get();
+            long lastTimestamp = last >>> SEQUENCE_BITS;
+            long now = System.currentTimeMillis() - EPOCH;
+            long next;
+            if (now > lastTimestamp) {
+                //1.进入新的毫秒,序列号从0开始
+                next = now << SEQUENCE_BITS;
+            } else {
+                //2.同一毫秒或时钟回拨,沿用上次的时间戳,序列号溢出时进位到下一毫秒
+                next = last + 1;
+                if (lastTimestamp - now > MAX_BACKWARD_MS && (next & SEQUENCE_MASK) == 0) {
+                    log.warn("时钟回拨" + (lastTimestamp - now) + "ms,沿用上次时间戳继续发号");
+                }
+            }
+            if (state.compareAndSet(last, next)) {
+                long timestamp = next >>> SEQUENCE_BITS;
+                if (timestamp > MAX_TIMESTAMP) {
+                    throw new IllegalStateException("雪花算法时间戳已用完");
+                }
+                return TAG | timestamp << (WORKER_BITS + SEQUENCE_BITS) | workerId << SEQUENCE_BITS | (next & SEQUENCE_MASK);
+            }
+        }
+    }
+
+    public long getWorkerId() {
+        return workerId;
+    }
+
+    //从redis租用一个空闲的workerId
+    private long leaseWorkerId() {
+        Long seq = stringRedisTemplate.opsForValue().increment(ID_WORKER_SEQ_KEY);
+        long start = seq == null ? 0 : seq;
+        for (long i = 0; i <= MAX_WORKER_ID; i++) {
+            long candidate = (start + i) & MAX_WORKER_ID;
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + candidate, leaseOwner, ID_WORKER_TTL, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                return candidate;
+            }
+        }
+        throw new IllegalStateException("没有可用的workerId");
+    }
+
+    /*
+     * 续约workerId,redis不可用时记录日志,租约有效期内继续发号,超过后nextId停止发号
+     * workerId被其他节点占用时停止发号,重新租用一个空闲的workerId后恢复
+     * */
+    private void renewLease() {
+        long start = System.currentTimeMillis();
+        try {
+            if (start > leaseValidUntil) {
+                //租约已失效,其他节点可能已租用该workerId,换一个重新租用
+                reacquireWorkerId(start);
+                return;
+            }
+            String key = ID_WORKER_KEY + workerId;
+            String owner = stringRedisTemplate.opsForValue().get(key);
+            if (owner == null) {
+                //租约已过期,重新占用;失败说明已被其他节点租用
+                Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(key, leaseOwner, ID_WORKER_TTL, TimeUnit.SECONDS);
+                owner = Boolean.TRUE.equals(success) ? leaseOwner : stringRedisTemplate.opsForValue().get(key);
+            } else if (leaseOwner.equals(owner)
+                    && !Boolean.TRUE.equals(stringRedisTemplate.expire(key, ID_WORKER_TTL, TimeUnit.SECONDS))) {
+                //续约前key恰好过期,下次续约时重新占用
+                return;
+            }
+            if (leaseOwner.equals(owner)) {
+                extendLease(start);
+                return;
+            }
+            leaseValidUntil = 0;
+            log.error("workerId被其他节点占用,暂停发号并重新租用:" + workerId);
+            reacquireWorkerId(start);
+        } catch (Exception e) {
+            log.warn("workerId续约失败:" + e.getMessage());
+        }
+    }
+
+    //重新租用workerId,成功后恢复发号
+    private void reacquireWorkerId(long start) {
+        workerId = leaseWorkerId();
+        extendLease(start);
+        log.info("雪花算法重新租用workerId:" + workerId);
+    }
+
+    //按续约请求发出的时间计算,不把请求耗时算进有效期
+    private void extendLease(long start) {
+        leaseValidUntil = start + TimeUnit.SECONDS.toMillis(ID_WORKER_TTL) - LEASE_SAFETY_MS;
+    }
+}
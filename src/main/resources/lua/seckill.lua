@@ -0,0 +1,45 @@
+--1.参数列表
+--1.1.库存key,用户所属分片
+local stockKey = KEYS[1]
+--1.2.订单key,用户所属分片,数据结构采用set
+local orderKey = KEYS[2]
+--1.3.订单stream,与所属分片同一hash tag
+local streamKey = KEYS[3]
+--1.4.占位key,用户所属分片库存不足、尝试其他分片期间存在
+local reserveKey = KEYS[4]
+--1.5.优惠卷id
+local voucherId = ARGV[1]
+--1.6.用户id
+local userId = ARGV[2]
+--1.7.订单id
+local orderId = ARGV[3]
+--1.8.分片数量
+local shards = tonumber(ARGV[4])
+--1.9.占位有效期,毫秒
+local reserveTtl = ARGV[5]
+
+--2.脚本业务
+--2.1.判断用户是否下单
+if redis.call('sismember', orderKey, userId) == 1 or redis.call('exists', reserveKey) == 1 then
+    --2.2.存在或正在其他分片下单,表明用户重复下单,返回2
+    return 2
+end
+--2.3.判断所属分片库存是否充足
+if (tonumber(redis.call('get', stockKey) or 0) > 0) then
+    --2.4扣库存
+    redis.call('incrby', stockKey, -1)
+    --2.5下单
+    redis.call('sadd', orderKey, userId)
+    --2.6向消息队列发送消息
+    redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+    return 0
+end
+--3.所属分片库存不足
+if shards <= 1 then
+    --3.1.没有其他分片,返回1
+    return 1
+end
+--3.2.先占位,保证同一用户并发请求也只能下一单,返回3由调用方尝试其他分片
+--占位带有效期,调用方在确认或释放前崩溃时自动过期,不会留下没有订单的购买记录
+redis.call('set', reserveKey, orderId, 'PX', reserveTtl)
+return 3
@@ -0,0 +1,18 @@
+--1.参数列表
+--1.1.订单key,用户所属分片
+local orderKey = KEYS[1]
+--1.2.占位key,用户所属分片
+local reserveKey = KEYS[2]
+--1.3.用户id
+local userId = ARGV[1]
+--1.4.订单id
+local orderId = ARGV[2]
+
+--2.其他分片下单成功,占位转为购买记录
+--2.1.占位已过期或不属于该订单时仍写入购买记录,订单消息已经发出
+redis.call('sadd', orderKey, userId)
+--2.2.删除占位
+if redis.call('get', reserveKey) == orderId then
+    redis.call('del', reserveKey)
+end
+return 0
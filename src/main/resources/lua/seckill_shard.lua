@@ -0,0 +1,22 @@
+--1.参数列表
+--1.1.库存key,其他分片
+local stockKey = KEYS[1]
+--1.2.订单stream,与该分片同一hash tag
+local streamKey = KEYS[2]
+--1.3.优惠卷id
+local voucherId = ARGV[1]
+--1.4.用户id
+local userId = ARGV[2]
+--1.5.订单id
+local orderId = ARGV[3]
+
+--2.判断库存是否充足
+if (tonumber(redis.call('get', stockKey) or 0) <= 0) then
+    --2.1.库存不足,返回1
+    return 1
+end
+--3.扣库存,一人一单已由用户所属分片的订单set保证
+redis.call('incrby', stockKey, -1)
+--4.向消息队列发送消息
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+return 0
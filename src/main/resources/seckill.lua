@@ -1,32 +0,0 @@
---1.参数列表
---1.1.优惠卷id
-local voucherId = ARGV[1]
---1.2.用户id
-local userId = ARGV[2]
---1.3.订单id
-local orderId = ARGV[3]
-
---2.数据key
---2.1库存key
-local stockKey = "seckill:stock:" .. voucherId
---2.2.订单key,数据接口采用set
-local orderKey = "seckill:order:" .. voucherId
-
---3.脚本业务
---3.1判断库存是否充足
-if (tonumber(redis.call('get', stockKey)) <= 0) then
-    --3.2.库存不足,返回1
-    return 1
-end
---3.3.判断用户是否下单
-if redis.call('sismember', orderKey, userId) == 1 then
-    --3.4.存在,表明用户重复下单,返回2
-    return 2
-end
---3.5扣库存
-redis.call('incrby', stockKey, -1)
---3.6下单
-redis.call('sadd', orderKey, userId)
---3.7向消息队列发送消息
-redis.call('xadd', 'streams.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
-return 0
\ No newline at end of file
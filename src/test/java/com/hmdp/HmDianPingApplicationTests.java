@@ -15,6 +15,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
+
 @SpringBootTest
 class HmDianPingApplicationTests {
 
@@ -37,7 +39,7 @@ class HmDianPingApplicationTests {
         //2.对店铺信息按typeId分组
         Map<Long, List<Shop>> map = list.stream().collect(Collectors.groupingBy(Shop::getTypeId));
         for (Map.Entry<Long, List<Shop>> longListEntry : map.entrySet()) {
-            String key = "shop:Geo:" + longListEntry.getKey();
+            String key = SHOP_GEO_KEY + longListEntry.getKey();
             List<Shop> value = longListEntry.getValue();
             List<RedisGeoCommands.GeoLocation<String>> locations = new ArrayList<>(value.size());
             for (Shop shop : value) {
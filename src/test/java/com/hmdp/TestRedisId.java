@@ -5,9 +5,14 @@ import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 
 import javax.annotation.Resource;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.ToLongFunction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
 
 @SpringBootTest
 public class TestRedisId {
@@ -37,5 +42,35 @@ public class TestRedisId {
         System.out.println("总共消耗时间" + sum);
     }
 
+    @Test
+    public void testIncrVsSegment() throws InterruptedException {
+        //预热
+        runIds(id -> redisIdWorker.nextIdByIncr("bench_incr"), 10, 100);
+        runIds(id -> redisIdWorker.nextIdBySegment("bench_segment"), 10, 100);
+
+        long incr = runIds(id -> redisIdWorker.nextIdByIncr("bench_incr"), 300, 100);
+        long segment = runIds(id -> redisIdWorker.nextIdBySegment("bench_segment"), 300, 1000);
+        System.out.println("INCR模式吞吐量(个/秒):" + incr);
+        System.out.println("号段模式吞吐量(个/秒):" + segment);
+    }
 
+    //多线程生成id,校验不重复,返回每秒生成的id数
+    private long runIds(ToLongFunction<Integer> generator, int tasks, int perTask) throws InterruptedException {
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        CountDownLatch latch = new CountDownLatch(tasks);
+        Runnable task = () -> {
+            for (int i = 0; i < perTask; i++) {
+                ids.add(generator.applyAsLong(i));
+            }
+            latch.countDown();
+        };
+        long start = System.nanoTime();
+        for (int i = 0; i < tasks; i++) {
+            es.submit(task);
+        }
+        latch.await();
+        long cost = Math.max(1, System.nanoTime() - start);
+        assertEquals((long) tasks * perTask, ids.size());
+        return (long) tasks * perTask * 1_000_000_000L / cost;
+    }
 }